@@ -42,7 +42,7 @@ public class MockServiceProvider extends MockCloud implements ServiceProvider {
 
 	@Override
 	public void initialize() {
-
+		getServiceRegistry().start();
 	}
 
 	/*
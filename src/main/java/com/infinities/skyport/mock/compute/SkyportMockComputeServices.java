@@ -18,6 +18,7 @@ package com.infinities.skyport.mock.compute;
 import org.dasein.cloud.CloudProvider;
 import org.dasein.cloud.mock.compute.MockComputeServices;
 
+import com.google.common.base.Supplier;
 import com.infinities.skyport.compute.SkyportComputeServices;
 import com.infinities.skyport.compute.SkyportVirtualMachineSupport;
 import com.infinities.skyport.mock.compute.vm.SkyportMockVMSupport;
@@ -28,6 +29,15 @@ import com.infinities.skyport.mock.compute.vm.SkyportMockVMSupport;
  */
 public class SkyportMockComputeServices extends MockComputeServices implements SkyportComputeServices {
 
+	private final Supplier<SkyportMockVMSupport> skyportVmSupport = new Supplier<SkyportMockVMSupport>() {
+
+		@Override
+		public SkyportMockVMSupport get() {
+			return new SkyportMockVMSupport(getProvider());
+		}
+	};
+
+
 	/**
 	 * @param provider
 	 */
@@ -43,7 +53,7 @@ public class SkyportMockComputeServices extends MockComputeServices implements S
 	 */
 	@Override
 	public SkyportVirtualMachineSupport getSkyportVirtualMachineSupport() {
-		return new SkyportMockVMSupport(this.getProvider());
+		return getRegistry().get(SkyportMockVMSupport.class, skyportVmSupport);
 	}
 
 }
@@ -15,7 +15,6 @@
  *******************************************************************************/
 package com.infinities.skyport.mock.compute.vm;
 
-import java.util.ArrayList;
 import java.util.Locale;
 
 import org.dasein.cloud.CloudException;
@@ -47,6 +46,8 @@ import org.dasein.cloud.identity.ServiceAction;
 import org.dasein.cloud.mock.compute.vm.MockVMSupport;
 import org.dasein.cloud.network.RawAddress;
 
+import com.google.common.base.Function;
+import com.google.common.collect.Iterables;
 import com.infinities.skyport.compute.SkyportVirtualMachineCapabilities;
 import com.infinities.skyport.compute.SkyportVirtualMachineSupport;
 import com.infinities.skyport.compute.VMUpdateOptions;
@@ -60,6 +61,8 @@ import com.infinities.skyport.network.SkyportRawAddress;
  */
 public class SkyportMockVMSupport implements SkyportVirtualMachineSupport {
 
+	static private final int STREAM_CHUNK_SIZE = 500;
+
 	private MockVMSupport inner;
 	private CloudProvider provider;
 
@@ -80,12 +83,14 @@ public class SkyportMockVMSupport implements SkyportVirtualMachineSupport {
 	 */
 	@Override
 	public Iterable<MinimalResource> listMinimalVirtualMachines() throws InternalException, CloudException {
-		ArrayList<MinimalResource> resources = new ArrayList<MinimalResource>();
+		return Iterables.transform(inner.streamVirtualMachines(STREAM_CHUNK_SIZE),
+				new Function<VirtualMachine, MinimalResource>() {
 
-		for (VirtualMachine vm : listVirtualMachines()) {
-			resources.add(new MinimalResource(vm.getProviderVirtualMachineId(), vm.getName()));
-		}
-		return resources;
+					@Override
+					public MinimalResource apply(VirtualMachine vm) {
+						return new MinimalResource(vm.getProviderVirtualMachineId(), vm.getName());
+					}
+				});
 	}
 
 	/*
@@ -96,12 +101,14 @@ public class SkyportMockVMSupport implements SkyportVirtualMachineSupport {
 	 */
 	@Override
 	public Iterable<NovaStyleVirtualMachine> listNovaStyleVirtualMachines() throws InternalException, CloudException {
-		ArrayList<NovaStyleVirtualMachine> resources = new ArrayList<NovaStyleVirtualMachine>();
+		return Iterables.transform(inner.streamVirtualMachines(STREAM_CHUNK_SIZE),
+				new Function<VirtualMachine, NovaStyleVirtualMachine>() {
 
-		for (VirtualMachine vm : listVirtualMachines()) {
-			resources.add(toNovaStyleVirtualMachine(vm));
-		}
-		return resources;
+					@Override
+					public NovaStyleVirtualMachine apply(VirtualMachine vm) {
+						return toNovaStyleVirtualMachine(vm);
+					}
+				});
 	}
 
 	/**
@@ -173,7 +180,7 @@ public class SkyportMockVMSupport implements SkyportVirtualMachineSupport {
 		ret.setTerminationTimestamp(vm.getTerminationTimestamp());
 		ret.setVisibleScope(vm.getVisibleScope());
 		ret.setVolumes(vm.getVolumes());
-		return null;
+		return ret;
 	}
 
 	/*
@@ -0,0 +1,212 @@
+/**
+ * Copyright (C) 2009-2012 enStratus Networks Inc.
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+
+package org.dasein.cloud.mock;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+
+/**
+ * The source of simulated time shared by every mock subsystem. All
+ * timestamps and delays in the mock cloud are expressed in simulated
+ * milliseconds read from the current clock, which is one of:
+ * <ul>
+ * <li>real time (the default);</li>
+ * <li>time running a fixed factor faster than real time, so that hours of
+ * cloud behavior pass in seconds;</li>
+ * <li>time that only moves when it is explicitly advanced.</li>
+ * </ul>
+ * <p>
+ * The clock can be chosen with the <code>dasein.mock.clock</code> system
+ * property (<code>real</code>, <code>scaled</code> or <code>manual</code>)
+ * and, for a scaled clock, <code>dasein.mock.clock.scale</code> (1000 by
+ * default), or replaced at runtime through {@link #setInstance(MockClock)}.
+ * </p>
+ */
+public abstract class MockClock {
+
+	/**
+	 * A clock that follows real time.
+	 */
+	static private class Real extends MockClock {
+
+		@Override
+		public long now() {
+			return System.currentTimeMillis();
+		}
+
+		@Override
+		public long toRealDelay(long millis) {
+			return millis;
+		}
+	}
+
+	/**
+	 * A clock running a fixed factor faster than real time, starting from the
+	 * moment it was created.
+	 */
+	static private class Scaled extends MockClock {
+
+		private final long origin;
+		private final long realOrigin;
+		private final double scale;
+
+
+		private Scaled(double scale) {
+			this.origin = System.currentTimeMillis();
+			this.realOrigin = System.nanoTime();
+			this.scale = scale;
+		}
+
+		@Override
+		public long now() {
+			return origin + (long) ((System.nanoTime() - realOrigin) * scale / 1000000.0);
+		}
+
+		@Override
+		public long toRealDelay(long millis) {
+			return (millis <= 0L ? 0L : Math.max(1L, (long) (millis / scale)));
+		}
+	}
+
+	/**
+	 * A clock that stands still until it is advanced.
+	 */
+	static public final class Manual extends MockClock {
+
+		private final AtomicLong now;
+
+
+		private Manual(long start) {
+			this.now = new AtomicLong(start);
+		}
+
+		@Override
+		public long now() {
+			return now.get();
+		}
+
+		@Override
+		public long toRealDelay(long millis) {
+			return (millis <= 0L ? 0L : Long.MAX_VALUE);
+		}
+
+		/**
+		 * Moves the clock forward and, if this is the current clock, waits
+		 * until the scheduler has run every event that has become due, so that
+		 * their effects are visible as soon as this method returns. Events due
+		 * at the new time that those events schedule are run as well. Called
+		 * from a scheduled task, it returns at once and the due events run
+		 * after that task.
+		 *
+		 * @param millis
+		 *            the simulated time to advance by, in milliseconds
+		 * @return the new time
+		 */
+		public long advance(@Nonnegative long millis) {
+			long t = now.addAndGet(millis);
+
+			if (getInstance() == this) {
+				MockScheduler.getInstance().awaitDue(t);
+			}
+			return t;
+		}
+	}
+
+
+	static private volatile MockClock instance = fromProperties();
+
+
+	static private @Nonnull MockClock fromProperties() {
+		String mode = System.getProperty("dasein.mock.clock", "real");
+
+		if (mode.equalsIgnoreCase("scaled")) {
+			return scaled(Double.parseDouble(System.getProperty("dasein.mock.clock.scale", "1000")));
+		} else if (mode.equalsIgnoreCase("manual")) {
+			return manual(System.currentTimeMillis());
+		}
+		return real();
+	}
+
+	/**
+	 * @return the clock read by every mock subsystem
+	 */
+	static public @Nonnull MockClock getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Replaces the clock read by every mock subsystem. Events that were
+	 * already scheduled keep their due times in simulated time.
+	 *
+	 * @param clock
+	 *            the new clock
+	 */
+	static public void setInstance(@Nonnull MockClock clock) {
+		instance = clock;
+		MockScheduler.getInstance().wake();
+	}
+
+	/**
+	 * @return a clock following real time
+	 */
+	static public @Nonnull MockClock real() {
+		return new Real();
+	}
+
+	/**
+	 * @param scale
+	 *            how many times faster than real time the clock runs
+	 * @return a clock running faster (or slower) than real time
+	 */
+	static public @Nonnull MockClock scaled(double scale) {
+		if (scale <= 0.0) {
+			throw new IllegalArgumentException("The scale must be positive: " + scale);
+		}
+		return new Scaled(scale);
+	}
+
+	/**
+	 * @param start
+	 *            the initial time
+	 * @return a clock that only moves when advanced
+	 */
+	static public @Nonnull Manual manual(long start) {
+		return new Manual(start);
+	}
+
+
+	/**
+	 * @return the current simulated time in milliseconds since the epoch
+	 */
+	public abstract long now();
+
+	/**
+	 * Converts a simulated delay into the real time that will pass before it
+	 * elapses.
+	 *
+	 * @param millis
+	 *            the simulated delay in milliseconds
+	 * @return the real delay in milliseconds, or {@link Long#MAX_VALUE} if the
+	 *         delay only elapses when the clock is advanced
+	 */
+	public abstract long toRealDelay(long millis);
+}
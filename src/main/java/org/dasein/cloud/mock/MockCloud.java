@@ -48,6 +48,8 @@ public class MockCloud extends AbstractCloud {
 
 	private NetworkServices networkServices;
 
+	private final MockServiceRegistry serviceRegistry = new MockServiceRegistry();
+
 
 	public MockCloud() {
 		computeServices = new MockComputeServices(this);
@@ -55,6 +57,19 @@ public class MockCloud extends AbstractCloud {
 		networkServices = new MockNetworkServices(this);
 	}
 
+	/**
+	 * @return the registry holding the support objects of this provider
+	 */
+	public @Nonnull MockServiceRegistry getServiceRegistry() {
+		return serviceRegistry;
+	}
+
+	@Override
+	public void close() {
+		serviceRegistry.stop();
+		super.close();
+	}
+
 	@Override
 	public @Nonnull ComputeServices getComputeServices() {
 		return computeServices;
@@ -0,0 +1,261 @@
+/**
+ * Copyright (C) 2009-2012 enStratus Networks Inc.
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.mock;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Hands out numeric IDs for mock resources, one sequence per key (typically a
+ * region). IDs are taken from an atomic counter, so allocating a single ID or
+ * a contiguous block never takes a lock. Sequences lease IDs in blocks; when a
+ * backing file is configured through the <code>dasein.mock.idFile</code>
+ * system property, the upper bound of each lease is written to it before any
+ * ID in the lease is handed out, and sequences resume from the recorded bounds
+ * after a restart so that IDs stay unique across JVMs. The lease size defaults
+ * to 10,000 and can be overridden through <code>dasein.mock.idLease</code>.
+ */
+public class MockIdAllocator {
+
+	static private final Logger logger = LoggerFactory.getLogger(MockIdAllocator.class);
+
+	static private final ConcurrentMap<String, MockIdAllocator> allocators =
+			new ConcurrentHashMap<String, MockIdAllocator>();
+	static private final Properties watermarks = new Properties();
+
+	static private volatile File file;
+	static private volatile long lease = Math.max(1L, Long.getLong("dasein.mock.idLease", 10000L));
+
+	static {
+		String path = System.getProperty("dasein.mock.idFile");
+
+		if (path != null && !path.isEmpty()) {
+			setFile(new File(path));
+		}
+	}
+
+
+	/**
+	 * Provides the allocator for a given kind of resource.
+	 *
+	 * @param name
+	 *            the kind of resource, such as <code>vm</code>
+	 * @return the allocator for that kind of resource
+	 */
+	static public @Nonnull MockIdAllocator getInstance(@Nonnull String name) {
+		MockIdAllocator allocator = allocators.get(name);
+
+		if (allocator == null) {
+			allocator = new MockIdAllocator(name);
+
+			MockIdAllocator existing = allocators.putIfAbsent(name, allocator);
+
+			if (existing != null) {
+				allocator = existing;
+			}
+		}
+		return allocator;
+	}
+
+	/**
+	 * Configures the file recording the high-water mark of every sequence.
+	 * Watermarks already in the file are loaded; sequences created afterwards
+	 * resume from them.
+	 *
+	 * @param watermarkFile
+	 *            the file, or <code>null</code> to stop persisting watermarks
+	 */
+	static public void setFile(@Nullable File watermarkFile) {
+		synchronized (watermarks) {
+			file = watermarkFile;
+			if (watermarkFile != null && watermarkFile.exists()) {
+				InputStream input = null;
+
+				try {
+					input = new FileInputStream(watermarkFile);
+					watermarks.load(input);
+				} catch (IOException e) {
+					logger.warn("Unable to read ID watermarks from " + watermarkFile, e);
+				} finally {
+					close(input);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Configures how many IDs a sequence leases at a time.
+	 *
+	 * @param size
+	 *            the lease size
+	 */
+	static public void setLease(@Nonnegative long size) {
+		lease = Math.max(1L, size);
+	}
+
+	static private long getWatermark(@Nonnull String key) {
+		synchronized (watermarks) {
+			String value = watermarks.getProperty(key);
+
+			if (value != null) {
+				try {
+					return Long.parseLong(value);
+				} catch (NumberFormatException e) {
+					logger.warn("Ignoring invalid ID watermark for " + key + ": " + value);
+				}
+			}
+			return 1L;
+		}
+	}
+
+	static private void setWatermark(@Nonnull String key, long value) {
+		synchronized (watermarks) {
+			File target = file;
+
+			watermarks.setProperty(key, String.valueOf(value));
+			if (target == null) {
+				return;
+			}
+			File tmp = new File(target.getPath() + ".tmp");
+			OutputStream output = null;
+
+			try {
+				output = new FileOutputStream(tmp);
+				watermarks.store(output, "Mock ID watermarks");
+				output.close();
+				output = null;
+				if (!tmp.renameTo(target)) {
+					if (!target.delete() || !tmp.renameTo(target)) {
+						logger.warn("Unable to replace ID watermarks in " + target);
+					}
+				}
+			} catch (IOException e) {
+				logger.warn("Unable to write ID watermarks to " + target, e);
+			} finally {
+				close(output);
+			}
+		}
+	}
+
+	static private void close(@Nullable Closeable closeable) {
+		if (closeable != null) {
+			try {
+				closeable.close();
+			} catch (IOException ignore) {
+				// ignore
+			}
+		}
+	}
+
+
+	private class Sequence {
+
+		private final String key;
+		private final AtomicLong next;
+		private volatile long limit;
+
+
+		private Sequence(@Nonnull String key) {
+			this.key = key;
+			this.limit = getWatermark(key);
+			this.next = new AtomicLong(limit);
+		}
+
+		private long reserve(int count) {
+			long first = next.getAndAdd(count);
+			long end = first + count;
+
+			if (end > limit) {
+				synchronized (this) {
+					if (end > limit) {
+						long bound = Math.max(limit + lease, end);
+
+						setWatermark(key, bound);
+						limit = bound;
+					}
+				}
+			}
+			return first;
+		}
+	}
+
+
+	private final String name;
+	private final ConcurrentMap<String, Sequence> sequences = new ConcurrentHashMap<String, Sequence>();
+
+
+	private MockIdAllocator(@Nonnull String name) {
+		this.name = name;
+	}
+
+	private @Nonnull Sequence getSequence(@Nonnull String key) {
+		Sequence sequence = sequences.get(key);
+
+		if (sequence == null) {
+			sequence = new Sequence(name + "." + key);
+
+			Sequence existing = sequences.putIfAbsent(key, sequence);
+
+			if (existing != null) {
+				sequence = existing;
+			}
+		}
+		return sequence;
+	}
+
+	/**
+	 * Allocates a single ID.
+	 *
+	 * @param key
+	 *            the sequence to allocate from, such as a region ID
+	 * @return the ID
+	 */
+	public long next(@Nonnull String key) {
+		return getSequence(key).reserve(1);
+	}
+
+	/**
+	 * Allocates a contiguous block of IDs.
+	 *
+	 * @param key
+	 *            the sequence to allocate from, such as a region ID
+	 * @param count
+	 *            the number of IDs in the block
+	 * @return the first ID of the block
+	 */
+	public long reserve(@Nonnull String key, @Nonnegative int count) {
+		return getSequence(key).reserve(Math.max(1, count));
+	}
+}
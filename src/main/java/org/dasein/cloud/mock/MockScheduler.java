@@ -0,0 +1,353 @@
+/**
+ * Copyright (C) 2009-2012 enStratus Networks Inc.
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.mock;
+
+import java.util.Iterator;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Event-driven scheduler for simulated cloud activity. Work is held in a
+ * delay queue ordered by due time and executed by a single daemon worker, so
+ * the cost of the scheduler scales with the number of pending events rather
+ * than with the number of simulated resources. Scheduled tasks must be short
+ * and must never block. Due times are kept in the simulated time of the
+ * {@link MockClock}, so scaled and manually advanced clocks speed up or hold
+ * back every scheduled event alike.
+ * <p>
+ * The worker starts on demand. Providers that manage their lifecycle
+ * explicitly {@link #acquire()} the scheduler when initialized and
+ * {@link #release()} it when closed; once the last of them lets go the worker
+ * is stopped, leaving pending events queued until the scheduler is used again.
+ * </p>
+ * <p>
+ * Scheduling returns an {@link Event} that can be cancelled. A cancelled
+ * event lets go of its task at once; the event itself is dropped from the
+ * queue when it falls due or when cancelled events make up half of the queue,
+ * whichever comes first. Cancelling only marks the event; the worker does the
+ * purging, so a cancel never scans the queue.
+ * </p>
+ */
+public class MockScheduler {
+
+	static private final Logger logger = LoggerFactory.getLogger(MockScheduler.class);
+
+	static private final Runnable NOTHING = new Runnable() {
+
+		@Override
+		public void run() {
+		}
+	};
+
+	static private final MockScheduler instance = new MockScheduler("Mock Scheduler");
+
+
+	/**
+	 * @return the scheduler shared by all mock services
+	 */
+	static public @Nonnull MockScheduler getInstance() {
+		return instance;
+	}
+
+
+	/**
+	 * A scheduled task that has not yet run.
+	 */
+	public interface Event {
+
+		/**
+		 * Cancels the event unless its task is already running or has run.
+		 *
+		 * @return <code>true</code> if the task will not run
+		 */
+		public boolean cancel();
+	}
+
+
+	private class Job implements Delayed, Event {
+
+		private final long due;
+		private final long sequence;
+		private Runnable task;
+
+
+		private Job(long due, long sequence, Runnable task) {
+			this.due = due;
+			this.sequence = sequence;
+			this.task = task;
+		}
+
+		/**
+		 * @return the task to run, or <code>null</code> if the job was
+		 *         cancelled
+		 */
+		private synchronized Runnable claim() {
+			Runnable t = task;
+
+			task = null;
+			return t;
+		}
+
+		private synchronized boolean isCancelled() {
+			return (task == null);
+		}
+
+		@Override
+		public boolean cancel() {
+			synchronized (this) {
+				if (task == null) {
+					return false;
+				}
+				task = null;
+			}
+			cancelled(this);
+			return true;
+		}
+
+		@Override
+		public long getDelay(TimeUnit unit) {
+			MockClock clock = MockClock.getInstance();
+
+			return unit.convert(clock.toRealDelay(due - clock.now()), TimeUnit.MILLISECONDS);
+		}
+
+		@Override
+		public int compareTo(Delayed other) {
+			if (other == this) {
+				return 0;
+			}
+			Job job = (Job) other;
+
+			if (due != job.due) {
+				return (due < job.due ? -1 : 1);
+			}
+			return (sequence < job.sequence ? -1 : (sequence == job.sequence ? 0 : 1));
+		}
+	}
+
+
+	private final String name;
+	private final DelayQueue<Job> queue = new DelayQueue<Job>();
+	private final AtomicLong sequence = new AtomicLong();
+	private final AtomicInteger cancelled = new AtomicInteger();
+	private final AtomicBoolean purgeRequested = new AtomicBoolean(false);
+	private volatile Thread worker;
+	private int users;
+
+
+	private MockScheduler(@Nonnull String name) {
+		this.name = name;
+	}
+
+	/**
+	 * Schedules a task to run once after the specified delay.
+	 *
+	 * @param task
+	 *            the task to run
+	 * @param delayMillis
+	 *            the delay in simulated milliseconds
+	 * @return the scheduled event
+	 */
+	public @Nonnull Event schedule(@Nonnull Runnable task, @Nonnegative long delayMillis) {
+		if (worker == null) {
+			checkWorker();
+		}
+		Job job = new Job(MockClock.getInstance().now() + delayMillis, sequence.getAndIncrement(), task);
+
+		queue.offer(job);
+		return job;
+	}
+
+	/**
+	 * Counts a cancelled job and, once cancelled jobs make up half of the
+	 * queue, asks the worker to purge them.
+	 */
+	private void cancelled(@Nonnull Job job) {
+		int count = cancelled.incrementAndGet();
+
+		if (count >= 1024 && count * 2 >= queue.size() && purgeRequested.compareAndSet(false, true)) {
+			wake();
+		}
+	}
+
+	/**
+	 * Drops cancelled jobs from the queue. Runs on the worker only.
+	 */
+	private void purge() {
+		int removed = 0;
+		Iterator<Job> it = queue.iterator();
+
+		while (it.hasNext()) {
+			if (it.next().isCancelled()) {
+				it.remove();
+				removed++;
+			}
+		}
+		cancelled.addAndGet(-removed);
+	}
+
+	/**
+	 * Makes the worker re-examine the due times of pending events, as is
+	 * needed after the clock was advanced or replaced.
+	 */
+	public void wake() {
+		queue.offer(new Job(0L, sequence.getAndIncrement(), NOTHING));
+	}
+
+	/**
+	 * Blocks until the worker has run every event due at or before a point in
+	 * simulated time, including events scheduled by those events that are due
+	 * by then as well. Called from the worker itself, it only wakes the
+	 * worker, since waiting there would never end.
+	 *
+	 * @param time
+	 *            the simulated time
+	 */
+	public void awaitDue(long time) {
+		wake();
+		if (isWorkerThread()) {
+			return;
+		}
+		while (true) {
+			final CountDownLatch done = new CountDownLatch(1);
+
+			if (worker == null) {
+				checkWorker();
+			}
+			// ordered after every job due at or before the time
+			queue.offer(new Job(time, sequence.getAndIncrement(), new Runnable() {
+
+				@Override
+				public void run() {
+					done.countDown();
+				}
+			}));
+			try {
+				done.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+			Job head = queue.peek();
+
+			if (head == null || head.due > time) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * @return <code>true</code> if the calling thread is the worker of this
+	 *         scheduler, which must never block
+	 */
+	public boolean isWorkerThread() {
+		return (Thread.currentThread() == worker);
+	}
+
+	/**
+	 * @return the number of events waiting to fire
+	 */
+	public int getPendingCount() {
+		return queue.size();
+	}
+
+	/**
+	 * Registers a user of the scheduler and makes sure the worker is running.
+	 */
+	public synchronized void acquire() {
+		users++;
+		checkWorker();
+	}
+
+	/**
+	 * Unregisters a user of the scheduler, stopping the worker once no users
+	 * remain.
+	 */
+	public synchronized void release() {
+		if (users > 0) {
+			users--;
+		}
+		stopIfUnused();
+	}
+
+	/**
+	 * Stops a worker that was started on demand if no user has acquired the
+	 * scheduler.
+	 */
+	public synchronized void stopIfUnused() {
+		if (users == 0 && worker != null) {
+			Thread t = worker;
+
+			worker = null;
+			t.interrupt();
+		}
+	}
+
+	private synchronized void checkWorker() {
+		if (worker == null) {
+			worker = new Thread() {
+
+				@Override
+				public void run() {
+					work(this);
+				}
+			};
+			worker.setDaemon(true);
+			worker.setName(name);
+			worker.start();
+		}
+	}
+
+	private void work(@Nonnull Thread self) {
+		while (worker == self) {
+			Job job;
+
+			try {
+				job = queue.take();
+			} catch (InterruptedException ignore) {
+				continue;
+			}
+			if (purgeRequested.compareAndSet(true, false)) {
+				purge();
+			}
+			Runnable task = job.claim();
+
+			if (task == null) {
+				cancelled.decrementAndGet();
+				continue;
+			}
+			try {
+				task.run();
+			} catch (Throwable t) {
+				logger.warn("Scheduled task failed", t);
+			}
+		}
+	}
+}
@@ -0,0 +1,123 @@
+/**
+ * Copyright (C) 2009-2012 enStratus Networks Inc.
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+
+package org.dasein.cloud.mock;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.annotation.Nonnull;
+
+import org.dasein.cloud.CloudProvider;
+
+import com.google.common.base.Supplier;
+
+/**
+ * Holds the support objects of a single mock provider. Each support type is
+ * created lazily on first use and the same thread-safe instance is handed out
+ * from then on, so looking up a support object allocates nothing.
+ * <p>
+ * The registry also owns the lifecycle of the background workers the mock
+ * services depend on: {@link #start()} is called when the provider is
+ * initialized and {@link #stop()} when it is closed.
+ * </p>
+ */
+public class MockServiceRegistry {
+
+	/**
+	 * Finds the registry of a provider.
+	 *
+	 * @param provider
+	 *            the provider
+	 * @return the registry of a {@link MockCloud}, or a fresh registry for any
+	 *         other provider
+	 */
+	static public @Nonnull MockServiceRegistry getInstance(@Nonnull CloudProvider provider) {
+		if (provider instanceof MockCloud) {
+			return ((MockCloud) provider).getServiceRegistry();
+		}
+		return new MockServiceRegistry();
+	}
+
+
+	private final ConcurrentMap<Class<?>, Object> services = new ConcurrentHashMap<Class<?>, Object>();
+	private final AtomicBoolean started = new AtomicBoolean(false);
+
+
+	public MockServiceRegistry() {
+	}
+
+	/**
+	 * Provides the single instance of a support type, creating it on first
+	 * use. Should two threads race to create it, only one instance is ever
+	 * published.
+	 *
+	 * @param type
+	 *            the support type
+	 * @param factory
+	 *            creates the instance if none exists yet
+	 * @return the instance
+	 */
+	public @Nonnull <T> T get(@Nonnull Class<T> type, @Nonnull Supplier<? extends T> factory) {
+		Object service = services.get(type);
+
+		if (service == null) {
+			service = factory.get();
+
+			Object existing = services.putIfAbsent(type, service);
+
+			if (existing != null) {
+				service = existing;
+			}
+		}
+		return type.cast(service);
+	}
+
+	/**
+	 * Starts the background workers used by the mock services. Calling this
+	 * more than once has no further effect.
+	 */
+	public void start() {
+		if (started.compareAndSet(false, true)) {
+			MockScheduler.getInstance().acquire();
+		}
+	}
+
+	/**
+	 * Lets go of the background workers acquired by {@link #start()} and
+	 * discards the support instances. A registry that was never started
+	 * acquired nothing and leaves the workers alone, since other providers
+	 * may still depend on them.
+	 */
+	public void stop() {
+		if (started.compareAndSet(true, false)) {
+			MockScheduler.getInstance().release();
+		}
+		services.clear();
+	}
+
+	/**
+	 * @return <code>true</code> if the registry has been started and not yet
+	 *         stopped
+	 */
+	public boolean isStarted() {
+		return started.get();
+	}
+}
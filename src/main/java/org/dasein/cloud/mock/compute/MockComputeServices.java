@@ -24,9 +24,12 @@ import org.dasein.cloud.CloudProvider;
 import org.dasein.cloud.compute.AbstractComputeServices;
 import org.dasein.cloud.compute.MachineImageSupport;
 import org.dasein.cloud.compute.VirtualMachineSupport;
+import org.dasein.cloud.mock.MockServiceRegistry;
 import org.dasein.cloud.mock.compute.image.MockImageSupport;
 import org.dasein.cloud.mock.compute.vm.MockVMSupport;
 
+import com.google.common.base.Supplier;
+
 /**
  * Provides access into various mock compute services.
  * <p>
@@ -39,21 +42,46 @@ import org.dasein.cloud.mock.compute.vm.MockVMSupport;
  */
 public class MockComputeServices extends AbstractComputeServices<CloudProvider> {
 
-	private CloudProvider provider;
+	private final CloudProvider provider;
+	private final MockServiceRegistry registry;
+
+	private final Supplier<MockImageSupport> imageSupport = new Supplier<MockImageSupport>() {
+
+		@Override
+		public MockImageSupport get() {
+			return new MockImageSupport(provider);
+		}
+	};
+
+	private final Supplier<MockVMSupport> vmSupport = new Supplier<MockVMSupport>() {
+
+		@Override
+		public MockVMSupport get() {
+			return new MockVMSupport(provider);
+		}
+	};
 
 
 	public MockComputeServices(CloudProvider provider) {
 		super(provider);
 		this.provider = provider;
+		this.registry = MockServiceRegistry.getInstance(provider);
+	}
+
+	/**
+	 * @return the registry holding the support objects of the provider
+	 */
+	protected @Nonnull MockServiceRegistry getRegistry() {
+		return registry;
 	}
 
 	@Override
 	public @Nonnull MachineImageSupport getImageSupport() {
-		return new MockImageSupport(provider);
+		return registry.get(MockImageSupport.class, imageSupport);
 	}
 
 	@Override
 	public @Nonnull VirtualMachineSupport getVirtualMachineSupport() {
-		return new MockVMSupport(provider);
+		return registry.get(MockVMSupport.class, vmSupport);
 	}
 }
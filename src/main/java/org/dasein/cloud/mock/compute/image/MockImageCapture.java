@@ -0,0 +1,251 @@
+/**
+ * Copyright (C) 2009-2012 enStratus Networks Inc.
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+
+package org.dasein.cloud.mock.compute.image;
+
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.compute.MachineImage;
+import org.dasein.cloud.compute.MachineImageState;
+import org.dasein.cloud.mock.MockScheduler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Captures mock images as a staged pipeline on the {@link MockScheduler}.
+ * A capture takes a snapshot, copies it, registers the image and finally
+ * activates it; each stage is a continuation scheduled after a random
+ * latency, so no thread is ever held while a capture is in progress.
+ * <p>
+ * At most a fixed number of captures run at once and the others wait in a
+ * bounded queue; submissions beyond the queue depth are refused. The limits
+ * default to 16 running and 1024 waiting captures and can be overridden
+ * through the <code>dasein.mock.image.captureConcurrency</code> and
+ * <code>dasein.mock.image.captureQueue</code> system properties. Each stage
+ * takes 15 seconds plus up to 45 more, overridable through
+ * <code>dasein.mock.image.stageMinimum</code> and
+ * <code>dasein.mock.image.stageSpread</code> (in milliseconds).
+ * </p>
+ */
+public final class MockImageCapture {
+
+	/**
+	 * Follows the progress of a single capture. Callbacks are made from the
+	 * scheduler thread and must not block.
+	 */
+	interface Listener {
+
+		void progress(@Nonnegative int percent);
+
+		void registered(@Nonnull MachineImage image);
+
+		void activated(@Nonnull MachineImage image);
+
+		void failed(@Nonnull Throwable cause);
+	}
+
+	static private enum Stage {
+		SNAPSHOT(0), COPY(50), REGISTER(90), ACTIVATE(100);
+
+		private final int percent;
+
+
+		private Stage(int percent) {
+			this.percent = percent;
+		}
+	}
+
+	static private class Capture {
+
+		private final String endpoint;
+		private final String regionId;
+		private final MachineImage image;
+		private final Listener listener;
+
+
+		private Capture(String endpoint, String regionId, MachineImage image, Listener listener) {
+			this.endpoint = endpoint;
+			this.regionId = regionId;
+			this.image = image;
+			this.listener = listener;
+		}
+
+		private void schedule(@Nonnull final Stage stage) {
+			MockScheduler.getInstance().schedule(new Runnable() {
+
+				@Override
+				public void run() {
+					perform(stage);
+				}
+			}, (stage == Stage.SNAPSHOT ? 0L : latency()));
+		}
+
+		private void perform(@Nonnull Stage stage) {
+			try {
+				listener.progress(stage.percent);
+				switch (stage) {
+				case REGISTER:
+					MockImageCatalog.getInstance(endpoint, regionId).add(image);
+					listener.registered(image);
+					break;
+				case ACTIVATE:
+					image.setCurrentState(MachineImageState.ACTIVE);
+					listener.activated(image);
+					finished();
+					return;
+				default:
+					break;
+				}
+				schedule(Stage.values()[stage.ordinal() + 1]);
+			} catch (Throwable t) {
+				logger.warn("Capture of image " + image.getProviderMachineImageId() + " failed", t);
+				try {
+					listener.failed(t);
+				} finally {
+					finished();
+				}
+			}
+		}
+	}
+
+
+	static private final Logger logger = LoggerFactory.getLogger(MockImageCapture.class);
+
+	static private final Random random = new Random();
+	static private final ConcurrentLinkedQueue<Capture> waiting = new ConcurrentLinkedQueue<Capture>();
+	static private final AtomicInteger queued = new AtomicInteger();
+	static private final AtomicInteger active = new AtomicInteger();
+
+	static private volatile int concurrency = Integer.getInteger("dasein.mock.image.captureConcurrency", 16);
+	static private volatile int queueDepth = Integer.getInteger("dasein.mock.image.captureQueue", 1024);
+	static private volatile long stageMinimum = Long.getLong("dasein.mock.image.stageMinimum", 15000L);
+	static private volatile long stageSpread = Long.getLong("dasein.mock.image.stageSpread", 45000L);
+
+
+	private MockImageCapture() {
+	}
+
+	/**
+	 * Configures how many captures run at once and how many may wait.
+	 *
+	 * @param running
+	 *            the maximum number of captures in progress
+	 * @param waiting
+	 *            the maximum number of captures waiting to start
+	 */
+	static public void setLimits(@Nonnegative int running, @Nonnegative int waiting) {
+		concurrency = Math.max(1, running);
+		queueDepth = waiting;
+		drain();
+	}
+
+	/**
+	 * Configures how long each stage of a capture takes.
+	 *
+	 * @param minimum
+	 *            the minimum latency in milliseconds
+	 * @param spread
+	 *            the maximum additional random latency in milliseconds
+	 */
+	static public void setStageLatency(@Nonnegative long minimum, @Nonnegative long spread) {
+		stageMinimum = minimum;
+		stageSpread = spread;
+	}
+
+	/**
+	 * @return the number of captures in progress
+	 */
+	static public int getActiveCount() {
+		return active.get();
+	}
+
+	/**
+	 * @return the number of captures waiting to start
+	 */
+	static public int getQueuedCount() {
+		return queued.get();
+	}
+
+	static private long latency() {
+		long spread = stageSpread;
+
+		return stageMinimum + (spread < 1L ? 0L : (long) (random.nextDouble() * spread));
+	}
+
+	/**
+	 * Queues the capture of an image. The image must be in the
+	 * {@link MachineImageState#PENDING} state; it is added to the custom
+	 * images of the region once the register stage is reached.
+	 *
+	 * @param endpoint
+	 *            the endpoint the image belongs to
+	 * @param regionId
+	 *            the region the image belongs to
+	 * @param image
+	 *            the image being captured
+	 * @param listener
+	 *            follows the progress of the capture
+	 * @throws CloudException
+	 *             too many captures are already waiting
+	 */
+	static void submit(@Nonnull String endpoint, @Nonnull String regionId, @Nonnull MachineImage image,
+			@Nonnull Listener listener) throws CloudException {
+		if (queued.incrementAndGet() > queueDepth) {
+			queued.decrementAndGet();
+			throw new CloudException("Too many image captures are in progress; try again later");
+		}
+		waiting.offer(new Capture(endpoint, regionId, image, listener));
+		drain();
+	}
+
+	static private void finished() {
+		active.decrementAndGet();
+		drain();
+	}
+
+	static private void drain() {
+		while (true) {
+			int running = active.get();
+
+			if (running >= concurrency) {
+				return;
+			}
+			if (!active.compareAndSet(running, running + 1)) {
+				continue;
+			}
+			Capture capture = waiting.poll();
+
+			if (capture == null) {
+				active.decrementAndGet();
+				if (waiting.isEmpty()) {
+					return;
+				}
+				continue;
+			}
+			queued.decrementAndGet();
+			capture.schedule(Stage.SNAPSHOT);
+		}
+	}
+}
@@ -0,0 +1,262 @@
+/**
+ * Copyright (C) 2009-2012 enStratus Networks Inc.
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+
+package org.dasein.cloud.mock.compute.image;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.dasein.cloud.compute.MachineImage;
+
+/**
+ * The machine images of a single region of a mock cloud. Images are indexed
+ * by ID and by owner; the per-owner lists and the public library are
+ * immutable snapshots that are replaced, never modified, so reads take no
+ * locks and listings never copy. Writes are rare and serialized on the
+ * catalog; the public library is generated without holding that lock and
+ * published, together with its own ID lookup, with a compare-and-set. Each snapshot carries its own
+ * {@link MockImageIndex} for searches.
+ */
+class MockImageCatalog {
+
+	/**
+	 * The owner of the images in the public library.
+	 */
+	static final String PUBLIC_OWNER = "--cloud--";
+
+	/**
+	 * The public library of a region: its search index and its images by ID,
+	 * both built from the same generated list so that lookups, listings and
+	 * searches always hand out the same image instances.
+	 */
+	static private class Library {
+
+		private final MockImageIndex index;
+		private final Map<String, MachineImage> byId;
+
+
+		private Library(@Nonnull List<MachineImage> images) {
+			HashMap<String, MachineImage> map = new HashMap<String, MachineImage>(images.size() * 2);
+
+			for (MachineImage img : images) {
+				map.put(img.getProviderMachineImageId(), img);
+			}
+			this.index = new MockImageIndex(images);
+			this.byId = map;
+		}
+	}
+
+
+	static private final ConcurrentHashMap<String, ConcurrentHashMap<String, MockImageCatalog>> catalogs =
+			new ConcurrentHashMap<String, ConcurrentHashMap<String, MockImageCatalog>>();
+	static private final AtomicReferenceFieldUpdater<MockImageCatalog, Library> publicLibraryUpdater =
+			AtomicReferenceFieldUpdater.newUpdater(MockImageCatalog.class, Library.class, "publicLibrary");
+
+
+	/**
+	 * Provides the catalog of a region, creating it on first use.
+	 *
+	 * @param endpoint
+	 *            the endpoint of the cloud
+	 * @param regionId
+	 *            the region
+	 * @return the catalog
+	 */
+	static @Nonnull MockImageCatalog getInstance(@Nullable String endpoint, @Nullable String regionId) {
+		String e = (endpoint == null ? "" : endpoint);
+		String r = (regionId == null ? "" : regionId);
+		ConcurrentHashMap<String, MockImageCatalog> cloud = catalogs.get(e);
+
+		if (cloud == null) {
+			cloud = new ConcurrentHashMap<String, MockImageCatalog>();
+
+			ConcurrentHashMap<String, MockImageCatalog> existing = catalogs.putIfAbsent(e, cloud);
+
+			if (existing != null) {
+				cloud = existing;
+			}
+		}
+		MockImageCatalog catalog = cloud.get(r);
+
+		if (catalog == null) {
+			catalog = new MockImageCatalog(r);
+
+			MockImageCatalog existing = cloud.putIfAbsent(r, catalog);
+
+			if (existing != null) {
+				catalog = existing;
+			}
+		}
+		return catalog;
+	}
+
+
+	private final String regionId;
+	/** the custom images by ID; public images are looked up through the {@link Library} */
+	private final ConcurrentHashMap<String, MachineImage> byId = new ConcurrentHashMap<String, MachineImage>();
+	private final ConcurrentHashMap<String, MockImageIndex> byOwner = new ConcurrentHashMap<String, MockImageIndex>();
+	private volatile Library publicLibrary;
+
+
+	private MockImageCatalog(@Nonnull String regionId) {
+		this.regionId = regionId;
+	}
+
+	/**
+	 * Looks up an image visible to an account, that is an image in the public
+	 * library or one owned by the account.
+	 *
+	 * @param imageId
+	 *            the image ID
+	 * @param account
+	 *            the account looking
+	 * @return the image or <code>null</code> if no such image is visible
+	 */
+	@Nullable
+	MachineImage get(@Nonnull String imageId, @Nullable String account) {
+		MachineImage img = getPublicLibrary().byId.get(imageId);
+
+		if (img != null) {
+			return img;
+		}
+		img = byId.get(imageId);
+		if (img == null) {
+			return null;
+		}
+		String owner = img.getProviderOwnerId();
+
+		return (PUBLIC_OWNER.equals(owner) || (owner != null && owner.equals(account)) ? img : null);
+	}
+
+	/**
+	 * @param owner
+	 *            the owning account
+	 * @return a snapshot of the custom images owned by the account
+	 */
+	@Nonnull
+	List<MachineImage> listOwnedBy(@Nullable String owner) {
+		return indexOwnedBy(owner).getImages();
+	}
+
+	/**
+	 * @param owner
+	 *            the owning account
+	 * @return the search index over the custom images owned by the account
+	 */
+	@Nonnull
+	MockImageIndex indexOwnedBy(@Nullable String owner) {
+		MockImageIndex index = (owner == null ? null : byOwner.get(owner));
+
+		return (index == null ? MockImageIndex.EMPTY : index);
+	}
+
+	/**
+	 * @return a snapshot of the public library, which is generated by the
+	 *         {@link MockImageLibrary} on first use
+	 */
+	@Nonnull
+	List<MachineImage> listPublic() {
+		return indexPublic().getImages();
+	}
+
+	/**
+	 * @return the search index over the public library
+	 */
+	@Nonnull
+	MockImageIndex indexPublic() {
+		return getPublicLibrary().index;
+	}
+
+	/**
+	 * Provides the public library, generating it on first use. Generation can
+	 * take a while for large libraries, so it runs outside the catalog lock
+	 * and custom images can be added or removed in the meantime. Threads
+	 * racing on first use each generate the same library; the first to
+	 * publish wins and the others discard their copy and adopt the winner's.
+	 *
+	 * @return the public library
+	 */
+	private @Nonnull Library getPublicLibrary() {
+		Library library = publicLibrary;
+
+		if (library != null) {
+			return library;
+		}
+		library = new Library(MockImageLibrary.getInstance().generate(regionId, PUBLIC_OWNER));
+		if (!publicLibraryUpdater.compareAndSet(this, null, library)) {
+			library = publicLibrary;
+		}
+		return library;
+	}
+
+	/**
+	 * Adds a custom image to the catalog.
+	 *
+	 * @param img
+	 *            the image
+	 */
+	synchronized void add(@Nonnull MachineImage img) {
+		String owner = img.getProviderOwnerId();
+
+		byId.put(img.getProviderMachineImageId(), img);
+		if (owner != null) {
+			List<MachineImage> current = listOwnedBy(owner);
+			ArrayList<MachineImage> images = new ArrayList<MachineImage>(current.size() + 1);
+
+			images.addAll(current);
+			images.add(img);
+			byOwner.put(owner, new MockImageIndex(Collections.unmodifiableList(images)));
+		}
+	}
+
+	/**
+	 * Removes a custom image from the catalog.
+	 *
+	 * @param img
+	 *            the image
+	 * @return <code>true</code> if the image was in the catalog
+	 */
+	synchronized boolean remove(@Nonnull MachineImage img) {
+		String owner = img.getProviderOwnerId();
+
+		if (PUBLIC_OWNER.equals(owner) || !byId.remove(img.getProviderMachineImageId(), img)) {
+			return false;
+		}
+		if (owner != null) {
+			List<MachineImage> current = listOwnedBy(owner);
+			ArrayList<MachineImage> images = new ArrayList<MachineImage>(current);
+
+			images.remove(img);
+			if (images.isEmpty()) {
+				byOwner.remove(owner);
+			} else {
+				byOwner.put(owner, new MockImageIndex(Collections.unmodifiableList(images)));
+			}
+		}
+		return true;
+	}
+}
@@ -0,0 +1,319 @@
+/**
+ * Copyright (C) 2009-2012 enStratus Networks Inc.
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+
+package org.dasein.cloud.mock.compute.image;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.dasein.cloud.compute.Architecture;
+import org.dasein.cloud.compute.ImageClass;
+import org.dasein.cloud.compute.MachineImage;
+import org.dasein.cloud.compute.Platform;
+
+/**
+ * A search index over an immutable list of machine images. Names and
+ * descriptions are broken into lower-case unigrams, bigrams and trigrams
+ * whose postings are sorted arrays of positions in the list, and platforms,
+ * architectures and image classes are held as bitsets, so a search
+ * intersects postings and bitsets and only verifies the few candidates that
+ * survive. Keywords of one or two characters are answered from the postings
+ * of their unigram or bigram alone.
+ * <p>
+ * The postings are built on the first search, so snapshots that are never
+ * searched cost nothing beyond the list they wrap.
+ * </p>
+ */
+class MockImageIndex {
+
+	static private class Postings {
+
+		private final String[] names;
+		private final String[] descriptions;
+		private final Map<Long, int[]> grams;
+		private final Map<Platform, BitSet> platforms = new EnumMap<Platform, BitSet>(Platform.class);
+		private final Map<Architecture, BitSet> architectures = new EnumMap<Architecture, BitSet>(Architecture.class);
+		private final Map<ImageClass, BitSet> classes = new EnumMap<ImageClass, BitSet>(ImageClass.class);
+
+
+		private Postings(@Nonnull List<MachineImage> images) {
+			int size = images.size();
+			HashMap<String, String> lowered = new HashMap<String, String>();
+			HashMap<Long, int[]> building = new HashMap<Long, int[]>();
+
+			names = new String[size];
+			descriptions = new String[size];
+			for (int i = 0; i < size; i++) {
+				MachineImage img = images.get(i);
+
+				names[i] = lower(lowered, img.getName());
+				descriptions[i] = lower(lowered, img.getDescription());
+				post(building, names[i], i);
+				post(building, descriptions[i], i);
+				set(platforms, img.getPlatform(), i);
+				set(architectures, img.getArchitecture(), i);
+				set(classes, img.getImageClass(), i);
+			}
+			// the first slot of each list under construction holds its length
+			for (Map.Entry<Long, int[]> entry : building.entrySet()) {
+				int[] postings = entry.getValue();
+
+				entry.setValue(Arrays.copyOfRange(postings, 1, postings[0] + 1));
+			}
+			grams = building;
+		}
+
+		static private @Nonnull String lower(@Nonnull Map<String, String> lowered, @Nullable String text) {
+			if (text == null) {
+				return "";
+			}
+			String value = lowered.get(text);
+
+			if (value == null) {
+				value = text.toLowerCase(Locale.ENGLISH);
+				lowered.put(text, value);
+			}
+			return value;
+		}
+
+		static private void post(@Nonnull Map<Long, int[]> building, @Nonnull String text, int position) {
+			for (int i = 0; i < text.length(); i++) {
+				for (int length = 1; length <= GRAM && i + length <= text.length(); length++) {
+					Long key = gram(text, i, length);
+					int[] postings = building.get(key);
+
+					if (postings == null) {
+						postings = new int[4];
+						building.put(key, postings);
+					} else if (postings[postings[0]] == position) {
+						continue;
+					} else if (postings[0] + 1 == postings.length) {
+						postings = Arrays.copyOf(postings, postings.length * 2);
+						building.put(key, postings);
+					}
+					postings[0]++;
+					postings[postings[0]] = position;
+				}
+			}
+		}
+
+		static private <T extends Enum<T>> void set(@Nonnull Map<T, BitSet> bits, @Nullable T value, int position) {
+			if (value == null) {
+				return;
+			}
+			BitSet set = bits.get(value);
+
+			if (set == null) {
+				set = new BitSet();
+				bits.put(value, set);
+			}
+			set.set(position);
+		}
+	}
+
+
+	/** the longest n-gram indexed */
+	static private final int GRAM = 3;
+
+	static private final int[] NO_POSTINGS = new int[0];
+
+	static private final Comparator<int[]> SHORTEST_FIRST = new Comparator<int[]>() {
+
+		@Override
+		public int compare(int[] a, int[] b) {
+			return (a.length < b.length ? -1 : (a.length == b.length ? 0 : 1));
+		}
+	};
+
+	static final MockImageIndex EMPTY = new MockImageIndex(Collections.<MachineImage> emptyList());
+
+
+	/**
+	 * Packs up to three characters and their count into a single key, so
+	 * n-grams of different lengths never collide.
+	 */
+	static private long gram(@Nonnull String text, int offset, int length) {
+		long key = length;
+
+		for (int i = offset; i < offset + length; i++) {
+			key = (key << 16) | text.charAt(i);
+		}
+		return key;
+	}
+
+	/**
+	 * Checks whether an image platform satisfies a requested platform:
+	 * {@link Platform#UNIX} matches any Unix flavor, other platforms match
+	 * only themselves.
+	 *
+	 * @param wanted
+	 *            the requested platform
+	 * @param mine
+	 *            the platform of the image
+	 * @return <code>true</code> if the image matches
+	 */
+	static boolean matches(@Nonnull Platform wanted, @Nullable Platform mine) {
+		if (mine == null) {
+			return false;
+		}
+		return (wanted.equals(Platform.UNIX) ? mine.isUnix() : wanted.equals(mine));
+	}
+
+
+	private final List<MachineImage> images;
+	private volatile Postings postings;
+
+
+	MockImageIndex(@Nonnull List<MachineImage> images) {
+		this.images = images;
+	}
+
+	/**
+	 * @return the indexed images
+	 */
+	@Nonnull
+	List<MachineImage> getImages() {
+		return images;
+	}
+
+	private @Nonnull Postings getPostings() {
+		Postings p = postings;
+
+		if (p == null) {
+			synchronized (this) {
+				p = postings;
+				if (p == null) {
+					p = new Postings(images);
+					postings = p;
+				}
+			}
+		}
+		return p;
+	}
+
+	/**
+	 * Finds the images matching all of the specified criteria.
+	 *
+	 * @param keyword
+	 *            text the name or description must contain, ignoring case
+	 * @param platform
+	 *            the platform, or <code>null</code> or
+	 *            {@link Platform#UNKNOWN} for any
+	 * @param architecture
+	 *            the architecture, or <code>null</code> for any
+	 * @param imageClasses
+	 *            the image classes, or <code>null</code> or none for any
+	 * @return the matching images in index order
+	 */
+	@Nonnull
+	List<MachineImage> search(@Nullable String keyword, @Nullable Platform platform,
+			@Nullable Architecture architecture, @Nullable ImageClass... imageClasses) {
+		if (images.isEmpty()) {
+			return Collections.emptyList();
+		}
+		Postings p = getPostings();
+		BitSet filter = null;
+
+		if (platform != null && !platform.equals(Platform.UNKNOWN)) {
+			BitSet bits = new BitSet();
+
+			for (Map.Entry<Platform, BitSet> entry : p.platforms.entrySet()) {
+				if (matches(platform, entry.getKey())) {
+					bits.or(entry.getValue());
+				}
+			}
+			filter = bits;
+		}
+		if (architecture != null) {
+			filter = intersect(filter, p.architectures.get(architecture));
+		}
+		if (imageClasses != null && imageClasses.length > 0) {
+			BitSet bits = new BitSet();
+
+			for (ImageClass cls : imageClasses) {
+				BitSet set = (cls == null ? null : p.classes.get(cls));
+
+				if (set != null) {
+					bits.or(set);
+				}
+			}
+			filter = intersect(filter, bits);
+		}
+		if (filter != null && filter.isEmpty()) {
+			return Collections.emptyList();
+		}
+		String text = (keyword == null || keyword.isEmpty() ? null : keyword.toLowerCase(Locale.ENGLISH));
+		ArrayList<MachineImage> matches = new ArrayList<MachineImage>();
+
+		if (text == null) {
+			if (filter == null) {
+				return images;
+			}
+			for (int i = filter.nextSetBit(0); i >= 0; i = filter.nextSetBit(i + 1)) {
+				matches.add(images.get(i));
+			}
+		} else {
+			int length = Math.min(GRAM, text.length());
+			int[][] lists = new int[text.length() - length + 1][];
+
+			for (int i = 0; i < lists.length; i++) {
+				int[] postings = p.grams.get(gram(text, i, length));
+
+				lists[i] = (postings == null ? NO_POSTINGS : postings);
+			}
+			Arrays.sort(lists, SHORTEST_FIRST);
+			for (int position : lists[0]) {
+				if (filter != null && !filter.get(position)) {
+					continue;
+				}
+				boolean candidate = true;
+
+				for (int i = 1; candidate && i < lists.length; i++) {
+					candidate = (Arrays.binarySearch(lists[i], position) >= 0);
+				}
+				if (candidate && (p.names[position].contains(text) || p.descriptions[position].contains(text))) {
+					matches.add(images.get(position));
+				}
+			}
+		}
+		return matches;
+	}
+
+	static private @Nonnull BitSet intersect(@Nullable BitSet filter, @Nullable BitSet bits) {
+		if (bits == null) {
+			return new BitSet();
+		}
+		if (filter == null) {
+			return (BitSet) bits.clone();
+		}
+		filter.and(bits);
+		return filter;
+	}
+}
@@ -0,0 +1,399 @@
+/**
+ * Copyright (C) 2009-2012 enStratus Networks Inc.
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+
+package org.dasein.cloud.mock.compute.image;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.dasein.cloud.compute.Architecture;
+import org.dasein.cloud.compute.ImageClass;
+import org.dasein.cloud.compute.MachineImage;
+import org.dasein.cloud.compute.MachineImageState;
+import org.dasein.cloud.compute.MachineImageType;
+import org.dasein.cloud.compute.Platform;
+import org.dasein.cloud.mock.compute.vm.MockProductCatalog;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Generates the public image library of each region. The library is
+ * described by <code>library.properties</code> next to this class, or by the
+ * file named by the <code>dasein.mock.images</code> system property: a size,
+ * a seed, weighted operating system families with their versions and a
+ * weighted choice of architectures. Architectures no VM product supports are
+ * ignored. The reserved images listed in <code>library.reserved</code> always
+ * come first and keep the IDs <code>&lt;region&gt;-1</code>,
+ * <code>&lt;region&gt;-2</code> and so on; generated images are numbered
+ * after them.
+ * <p>
+ * Generation is deterministic. A library is cut into chunks, each drawn from
+ * its own random sequence seeded by the library seed, the region and the
+ * chunk, so large libraries are generated in parallel and still come out the
+ * same on every run. The threads helping the calling thread exist only for
+ * the duration of a single generation. Names are interned across regions and descriptions are
+ * shared per family, so tens of thousands of images cost little more than
+ * their IDs.
+ * </p>
+ */
+class MockImageLibrary {
+
+	static private final Logger logger = LoggerFactory.getLogger(MockImageLibrary.class);
+
+	static private final int CHUNK_SIZE = 4096;
+
+	static private class Holder {
+
+		static private final MockImageLibrary instance = load();
+	}
+
+	static private class Family {
+
+		private final String name;
+		private final Platform platform;
+		private final String[] versions;
+		private final String description;
+
+
+		private Family(String name, Platform platform, String[] versions, String description) {
+			this.name = name;
+			this.platform = platform;
+			this.versions = versions;
+			this.description = description;
+		}
+	}
+
+	static private class Reserved {
+
+		private final Family family;
+		private final String version;
+		private final Architecture architecture;
+
+
+		private Reserved(Family family, String version, Architecture architecture) {
+			this.family = family;
+			this.version = version;
+			this.architecture = architecture;
+		}
+	}
+
+
+	/**
+	 * @return the library shared by all regions
+	 */
+	static @Nonnull MockImageLibrary getInstance() {
+		return Holder.instance;
+	}
+
+	static private @Nonnull MockImageLibrary load() {
+		Properties properties = new Properties();
+		String path = System.getProperty("dasein.mock.images");
+		InputStream input = null;
+
+		try {
+			if (path != null && !path.isEmpty()) {
+				input = new FileInputStream(new File(path));
+			} else {
+				input = MockImageLibrary.class.getResourceAsStream("library.properties");
+			}
+			if (input == null) {
+				logger.warn("No image library configuration found; public libraries will be empty");
+			} else {
+				properties.load(input);
+			}
+		} catch (IOException e) {
+			logger.warn("Unable to load the image library from " + (path == null ? "the classpath" : path), e);
+		} finally {
+			if (input != null) {
+				try {
+					input.close();
+				} catch (IOException ignore) {
+					// ignore
+				}
+			}
+		}
+		return new MockImageLibrary(properties);
+	}
+
+	static private int parseInt(@Nonnull Properties properties, @Nonnull String key, int defaultValue) {
+		String value = properties.getProperty(key);
+
+		if (value == null) {
+			return defaultValue;
+		}
+		try {
+			return Integer.parseInt(value.trim());
+		} catch (NumberFormatException e) {
+			logger.warn("Ignoring invalid " + key + ": " + value);
+			return defaultValue;
+		}
+	}
+
+
+	private final int size;
+	private final long seed;
+	private final int builds;
+	private final Family[] families;
+	private final int[] familyWeights;
+	private final Architecture[] architectures;
+	private final int[] architectureWeights;
+	private final Reserved[] reserved;
+	private final ConcurrentHashMap<String, String> names = new ConcurrentHashMap<String, String>();
+
+
+	private MockImageLibrary(@Nonnull Properties properties) {
+		ArrayList<Family> families = new ArrayList<Family>();
+		ArrayList<Integer> weights = new ArrayList<Integer>();
+		HashMap<String, Family> byId = new HashMap<String, Family>();
+
+		for (String id : properties.getProperty("library.families", "").split(",")) {
+			id = id.trim();
+			if (id.isEmpty()) {
+				continue;
+			}
+			String prefix = "family." + id + ".";
+			int weight = parseInt(properties, prefix + "weight", 1);
+			Platform platform;
+
+			try {
+				platform = Platform.valueOf(properties.getProperty(prefix + "platform", "UNKNOWN").trim().toUpperCase());
+			} catch (IllegalArgumentException e) {
+				logger.warn("Skipping image family " + id + " with unknown platform");
+				continue;
+			}
+			String[] versions = properties.getProperty(prefix + "versions", "").split(",");
+
+			for (int i = 0; i < versions.length; i++) {
+				versions[i] = versions[i].trim();
+			}
+			if (weight < 1 || versions.length < 1 || versions[0].isEmpty()) {
+				logger.warn("Skipping image family " + id + " without weight or versions");
+				continue;
+			}
+			String name = properties.getProperty(prefix + "name", id).trim();
+
+			Family family = new Family(name, platform, versions, properties.getProperty(prefix + "description", name));
+
+			families.add(family);
+			weights.add(weight);
+			byId.put(id, family);
+		}
+		this.families = families.toArray(new Family[families.size()]);
+		this.familyWeights = cumulative(weights);
+
+		ArrayList<Architecture> architectures = new ArrayList<Architecture>();
+		Collection<Architecture> supported = MockProductCatalog.getInstance().getArchitectures();
+
+		weights.clear();
+		for (String entry : properties.getProperty("library.architectures", "I64").split(",")) {
+			String[] parts = entry.trim().split(":");
+
+			try {
+				Architecture architecture = Architecture.valueOf(parts[0].trim().toUpperCase());
+
+				if (!supported.contains(architecture)) {
+					logger.warn("Ignoring architecture without VM products: " + architecture);
+					continue;
+				}
+				architectures.add(architecture);
+				weights.add(parts.length > 1 ? Math.max(1, Integer.parseInt(parts[1].trim())) : 1);
+			} catch (IllegalArgumentException e) {
+				logger.warn("Ignoring invalid architecture: " + entry);
+			}
+		}
+		if (architectures.isEmpty()) {
+			architectures.add(Architecture.I64);
+			weights.add(1);
+		}
+		this.architectures = architectures.toArray(new Architecture[architectures.size()]);
+		this.architectureWeights = cumulative(weights);
+
+		ArrayList<Reserved> reserved = new ArrayList<Reserved>();
+
+		for (String entry : properties.getProperty("library.reserved", "").split(",")) {
+			String[] parts = entry.trim().split(":");
+
+			if (parts.length < 2 || parts[0].trim().isEmpty()) {
+				continue;
+			}
+			Family family = byId.get(parts[0].trim());
+
+			try {
+				Architecture architecture =
+						(parts.length > 2 ? Architecture.valueOf(parts[2].trim().toUpperCase()) : Architecture.I64);
+
+				if (family == null) {
+					logger.warn("Ignoring reserved image of unknown family: " + entry);
+				} else {
+					reserved.add(new Reserved(family, parts[1].trim(), architecture));
+				}
+			} catch (IllegalArgumentException e) {
+				logger.warn("Ignoring reserved image with invalid architecture: " + entry);
+			}
+		}
+		this.reserved = reserved.toArray(new Reserved[reserved.size()]);
+		this.size = (this.families.length == 0 ? 0 : Math.max(0, parseInt(properties, "library.size", 200)));
+		this.seed = parseInt(properties, "library.seed", 0);
+		this.builds = Math.max(1, parseInt(properties, "library.builds", 1));
+	}
+
+	static private @Nonnull int[] cumulative(@Nonnull List<Integer> weights) {
+		int[] totals = new int[weights.size()];
+		int total = 0;
+
+		for (int i = 0; i < totals.length; i++) {
+			total += weights.get(i);
+			totals[i] = total;
+		}
+		return totals;
+	}
+
+	static private int pick(@Nonnull int[] totals, @Nonnull Random random) {
+		int ticket = random.nextInt(totals[totals.length - 1]) + 1;
+		int i = Arrays.binarySearch(totals, ticket);
+
+		return (i >= 0 ? i : -(i + 1));
+	}
+
+	/**
+	 * Generates the public library of a region. Large libraries are generated
+	 * by the calling thread together with short-lived helper threads.
+	 *
+	 * @param regionId
+	 *            the region
+	 * @param owner
+	 *            the owner of the public images
+	 * @return the images of the library
+	 */
+	@Nonnull
+	List<MachineImage> generate(@Nonnull final String regionId, @Nonnull final String owner) {
+		final MachineImage[] images = new MachineImage[reserved.length + size];
+
+		for (int i = 0; i < reserved.length; i++) {
+			Reserved r = reserved[i];
+
+			images[i] = toImage(regionId, owner, i, r.family, intern(r.family.name + " " + r.version + " "
+					+ toLabel(r.architecture)), r.architecture);
+		}
+		if (size > 0) {
+			final int chunks = (size + CHUNK_SIZE - 1) / CHUNK_SIZE;
+			final AtomicInteger next = new AtomicInteger();
+			final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+			Runnable worker = new Runnable() {
+
+				@Override
+				public void run() {
+					try {
+						for (int chunk = next.getAndIncrement(); chunk < chunks; chunk = next.getAndIncrement()) {
+							generate(regionId, owner, chunk, images);
+						}
+					} catch (Throwable t) {
+						failure.compareAndSet(null, t);
+					}
+				}
+			};
+			int helpers = Math.min(chunks, Runtime.getRuntime().availableProcessors()) - 1;
+			Thread[] threads = new Thread[Math.max(0, helpers)];
+
+			for (int i = 0; i < threads.length; i++) {
+				threads[i] = new Thread(worker, "Image Library " + regionId);
+				threads[i].setDaemon(true);
+				threads[i].start();
+			}
+			worker.run();
+			for (Thread t : threads) {
+				try {
+					t.join();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IllegalStateException("Interrupted while generating the image library of " + regionId);
+				}
+			}
+			if (failure.get() != null) {
+				throw new IllegalStateException("Unable to generate the image library of " + regionId, failure.get());
+			}
+		}
+		return Collections.unmodifiableList(Arrays.asList(images));
+	}
+
+	private void generate(@Nonnull String regionId, @Nonnull String owner, int chunk, @Nonnull MachineImage[] images) {
+		Random random = new Random(seed * 31L + regionId.hashCode() * 7919L + chunk);
+		int end = Math.min(size, (chunk + 1) * CHUNK_SIZE);
+
+		for (int i = chunk * CHUNK_SIZE; i < end; i++) {
+			Family family = families[pick(familyWeights, random)];
+			String version = family.versions[random.nextInt(family.versions.length)];
+			Architecture architecture = architectures[pick(architectureWeights, random)];
+			int build = random.nextInt(builds) + 1;
+			int index = reserved.length + i;
+
+			images[index] = toImage(regionId, owner, index, family, intern(family.name + " " + version + " "
+					+ toLabel(architecture) + (builds > 1 ? " build " + build : "")), architecture);
+		}
+	}
+
+	static private @Nonnull MachineImage toImage(@Nonnull String regionId, @Nonnull String owner, int index,
+			@Nonnull Family family, @Nonnull String name, @Nonnull Architecture architecture) {
+		MachineImage img = new MachineImage();
+
+		img.setProviderRegionId(regionId);
+		img.setSoftware("");
+		img.setType(MachineImageType.VOLUME);
+		img.setArchitecture(architecture);
+		img.setCurrentState(MachineImageState.ACTIVE);
+		img.setDescription(family.description);
+		img.setName(name);
+		img.setPlatform(family.platform);
+		img.setProviderMachineImageId(regionId + "-" + (index + 1));
+		img.setProviderOwnerId(owner);
+		img.setImageClass(ImageClass.MACHINE);
+		return img;
+	}
+
+	private @Nonnull String intern(@Nonnull String name) {
+		String existing = names.putIfAbsent(name, name);
+
+		return (existing == null ? name : existing);
+	}
+
+	static private @Nonnull String toLabel(@Nullable Architecture architecture) {
+		if (Architecture.I64.equals(architecture)) {
+			return "x64";
+		} else if (Architecture.I32.equals(architecture)) {
+			return "x86";
+		}
+		return (architecture == null ? "" : architecture.name().toLowerCase());
+	}
+}
@@ -19,15 +19,14 @@
 package org.dasein.cloud.mock.compute.image;
 
 import java.util.ArrayList;
-import java.util.Collection;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
-import java.util.Map;
-import java.util.Random;
 import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
+import javax.annotation.Nonnegative;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 
@@ -54,6 +53,10 @@ import org.dasein.cloud.compute.MachineImageType;
 import org.dasein.cloud.compute.Platform;
 import org.dasein.cloud.compute.VirtualMachine;
 import org.dasein.cloud.identity.ServiceAction;
+import org.dasein.cloud.mock.MockClock;
+import org.dasein.cloud.mock.MockScheduler;
+
+import com.google.common.collect.Iterables;
 
 /**
  * Implements mocked up image management services for the Dasein Cloud mock
@@ -68,109 +71,87 @@ import org.dasein.cloud.identity.ServiceAction;
  */
 public class MockImageSupport implements MachineImageSupport {
 
-	private CloudProvider provider;
+	/**
+	 * Waits for a capture to activate its image on behalf of a synchronous
+	 * caller.
+	 */
+	static private class Waiter implements MockImageCapture.Listener {
 
-	static private final Map<String, Map<String, Collection<MachineImage>>> customImages =
-			new HashMap<String, Map<String, Collection<MachineImage>>>();
-	static private final Map<String, Map<String, Collection<MachineImage>>> publicImages =
-			new HashMap<String, Map<String, Collection<MachineImage>>>();
-	static private final Random random = new Random();
+		private final CountDownLatch latch = new CountDownLatch(1);
+		private volatile MachineImage image;
+		private volatile Throwable cause;
 
 
-	static private void addCustomImage(@Nonnull String endpoint, @Nonnull String regionId, @Nonnull MachineImage img) {
-		synchronized (customImages) {
-			Map<String, Collection<MachineImage>> cloud = customImages.get(endpoint);
+		@Override
+		public void progress(int percent) {
+		}
 
-			if (cloud == null) {
-				cloud = new HashMap<String, Collection<MachineImage>>();
-				customImages.put(endpoint, cloud);
-			}
-			Collection<MachineImage> images = cloud.get(regionId);
+		@Override
+		public void registered(@Nonnull MachineImage image) {
+		}
+
+		@Override
+		public void activated(@Nonnull MachineImage image) {
+			this.image = image;
+			latch.countDown();
+		}
+
+		@Override
+		public void failed(@Nonnull Throwable cause) {
+			this.cause = cause;
+			latch.countDown();
+		}
 
-			if (images == null) {
-				images = new ArrayList<MachineImage>();
-				cloud.put(regionId, images);
+		private @Nonnull MachineImage await(@Nonnegative long timeout) throws CloudException {
+			try {
+				if (!latch.await(timeout, TimeUnit.MILLISECONDS)) {
+					throw new CloudException("Timed out after " + timeout + " ms waiting for the image to be captured");
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new CloudException("Interrupted while waiting for the image to be captured");
+			}
+			if (cause != null) {
+				throw new CloudException(cause);
 			}
-			images.add(img);
+			return image;
 		}
 	}
 
-	@SuppressWarnings("deprecation")
-	static private @Nonnull Collection<MachineImage> getCustomImages(@Nonnull ProviderContext ctx) {
-		synchronized (customImages) {
-			Map<String, Collection<MachineImage>> cloud = customImages.get(ctx.getEndpoint());
 
-			if (cloud == null) {
-				cloud = new HashMap<String, Collection<MachineImage>>();
-				customImages.put(ctx.getEndpoint(), cloud);
-			}
-			Collection<MachineImage> images = cloud.get(ctx.getRegionId());
+	static private volatile long captureTimeout = Long.getLong("dasein.mock.image.captureTimeout", 600000L);
 
-			if (images == null) {
-				images = new ArrayList<MachineImage>();
-				cloud.put(ctx.getRegionId(), images);
-			}
-			ArrayList<MachineImage> custom = new ArrayList<MachineImage>();
 
-			for (MachineImage img : images) {
-				if (img.getProviderOwnerId() != null && img.getProviderOwnerId().equals(ctx.getAccountNumber())) {
-					custom.add(img);
-				}
-			}
-			return custom;
-		}
+	/**
+	 * Configures how long a synchronous capture waits for its image.
+	 *
+	 * @param millis
+	 *            the timeout in real milliseconds
+	 */
+	static public void setCaptureTimeout(@Nonnegative long millis) {
+		captureTimeout = Math.max(1L, millis);
 	}
 
-	@SuppressWarnings("deprecation")
-	static private @Nonnull Collection<MachineImage> getPublicImages(@Nonnull ProviderContext ctx) {
-		synchronized (publicImages) {
-			Map<String, Collection<MachineImage>> cloud = publicImages.get(ctx.getEndpoint());
 
-			if (cloud == null) {
-				cloud = new HashMap<String, Collection<MachineImage>>();
-				publicImages.put(ctx.getEndpoint(), cloud);
-			}
-			Collection<MachineImage> images = cloud.get(ctx.getRegionId());
-
-			if (images == null) {
-				images = new ArrayList<MachineImage>();
-
-				MachineImage img;
-
-				img = new MachineImage();
-				img.setProviderRegionId(ctx.getRegionId());
-				img.setSoftware("");
-				img.setType(MachineImageType.VOLUME);
-				img.setArchitecture(Architecture.I64);
-				img.setCurrentState(MachineImageState.ACTIVE);
-				img.setDescription("An Ubunutu VM");
-				img.setName("Ubuntu 10.04 x64");
-				img.setPlatform(Platform.UBUNTU);
-				img.setProviderMachineImageId(ctx.getRegionId() + "-1");
-				img.setProviderOwnerId("--cloud--");
-				img.setProviderRegionId(ctx.getRegionId());
-				img.setImageClass(ImageClass.MACHINE);
-				images.add(img);
-
-				img = new MachineImage();
-				img.setProviderRegionId(ctx.getRegionId());
-				img.setSoftware("");
-				img.setType(MachineImageType.VOLUME);
-				img.setArchitecture(Architecture.I64);
-				img.setCurrentState(MachineImageState.ACTIVE);
-				img.setDescription("Windows VM");
-				img.setName("Windows 2008 x64");
-				img.setPlatform(Platform.WINDOWS);
-				img.setImageClass(ImageClass.MACHINE);
-				img.setProviderMachineImageId(ctx.getRegionId() + "-2");
-				img.setProviderOwnerId("--cloud--");
-				img.setProviderRegionId(ctx.getRegionId());
-				images.add(img);
-
-				cloud.put(ctx.getRegionId(), Collections.unmodifiableCollection(images));
-			}
-			return images;
-		}
+	private CloudProvider provider;
+
+	@SuppressWarnings("deprecation")
+	static private @Nonnull MockImageCatalog getCatalog(@Nonnull ProviderContext ctx) {
+		return MockImageCatalog.getInstance(ctx.getEndpoint(), ctx.getRegionId());
+	}
+
+	/**
+	 * Looks up an image as visible to the account of an explicit context.
+	 *
+	 * @param ctx
+	 *            the context of the account
+	 * @param providerImageId
+	 *            the image ID
+	 * @return the image or <code>null</code> if no such image is visible
+	 */
+	@SuppressWarnings("deprecation")
+	static public @Nullable MachineImage findImage(@Nonnull ProviderContext ctx, @Nonnull String providerImageId) {
+		return getCatalog(ctx).get(providerImageId, ctx.getAccountNumber());
 	}
 
 	public MockImageSupport(CloudProvider provider) {
@@ -208,32 +189,56 @@ public class MockImageSupport implements MachineImageSupport {
 		if (ctx == null) {
 			throw new CloudException("No context was provided for this request");
 		}
-		return image(ctx, options, null);
+		// the capture stages run on the scheduler, so waiting for them there or
+		// under a clock nobody advances would never end
+		if (MockScheduler.getInstance().isWorkerThread()) {
+			throw new CloudException("Images cannot be captured synchronously from the mock scheduler; "
+					+ "use captureImageAsync instead");
+		}
+		if (MockClock.getInstance() instanceof MockClock.Manual) {
+			throw new CloudException("Images cannot be captured synchronously under a manual clock; "
+					+ "use captureImageAsync instead");
+		}
+		Waiter waiter = new Waiter();
+
+		capture(ctx, options.getVirtualMachineId(), options.getName(), options.getDescription(), waiter);
+		return waiter.await(captureTimeout);
 	}
 
 	@Override
-	public void captureImageAsync(final @Nonnull ImageCreateOptions options,
+	public void captureImageAsync(@Nonnull ImageCreateOptions options,
 			final @Nonnull AsynchronousTask<MachineImage> taskTracker) throws CloudException, InternalException {
-		final ProviderContext ctx = provider.getContext();
+		ProviderContext ctx = provider.getContext();
 
 		if (ctx == null) {
 			throw new CloudException("No context was provided for this request");
 		}
+		capture(ctx, options.getVirtualMachineId(), options.getName(), options.getDescription(),
+				new MockImageCapture.Listener() {
 
-		Thread t = new Thread() {
+					@Override
+					public void progress(int percent) {
+						if (!taskTracker.isComplete()) {
+							taskTracker.setPercentComplete(percent);
+						}
+					}
 
-			@Override
-			public void run() {
-				try {
-					image(ctx, options, taskTracker);
-				} catch (Throwable t) {
-					taskTracker.complete(t);
-				}
-			}
-		};
-		t.setName("Image Builder");
-		t.setDaemon(true);
-		t.start();
+					@Override
+					public void registered(@Nonnull MachineImage image) {
+						taskTracker.completeWithResult(image);
+					}
+
+					@Override
+					public void activated(@Nonnull MachineImage image) {
+					}
+
+					@Override
+					public void failed(@Nonnull Throwable cause) {
+						if (!taskTracker.isComplete()) {
+							taskTracker.complete(cause);
+						}
+					}
+				});
 	}
 
 	@Override
@@ -243,18 +248,7 @@ public class MockImageSupport implements MachineImageSupport {
 		if (ctx == null) {
 			throw new CloudException("No context was provided for this request");
 		}
-		for (MachineImage img : getCustomImages(ctx)) {
-			if (img.getProviderMachineImageId().equals(providerImageId)) {
-				return img;
-			}
-		}
-
-		for (MachineImage img : getPublicImages(ctx)) {
-			if (img.getProviderMachineImageId().equals(providerImageId)) {
-				return img;
-			}
-		}
-		return null;
+		return findImage(ctx, providerImageId);
 	}
 
 	@Override
@@ -289,13 +283,13 @@ public class MockImageSupport implements MachineImageSupport {
 	}
 
 	@SuppressWarnings("deprecation")
-	private @Nonnull MachineImage image(@Nonnull ProviderContext ctx, @Nonnull ImageCreateOptions options,
-			@Nullable AsynchronousTask<MachineImage> optionalTask) throws CloudException, InternalException {
-		VirtualMachine vm =
-				provider.getComputeServices().getVirtualMachineSupport().getVirtualMachine(options.getVirtualMachineId());
+	private void capture(@Nonnull ProviderContext ctx, @Nonnull String vmId, @Nonnull String name,
+			@Nonnull String description, @Nonnull MockImageCapture.Listener listener) throws CloudException,
+			InternalException {
+		VirtualMachine vm = provider.getComputeServices().getVirtualMachineSupport().getVirtualMachine(vmId);
 
 		if (vm == null) {
-			throw new CloudException("No such virtual machine: " + options.getVirtualMachineId());
+			throw new CloudException("No such virtual machine: " + vmId);
 		}
 		MachineImage image = new MachineImage();
 		String endpoint = ctx.getEndpoint();
@@ -306,88 +300,49 @@ public class MockImageSupport implements MachineImageSupport {
 		}
 		image.setArchitecture(Architecture.I64);
 		image.setCurrentState(MachineImageState.PENDING);
-		image.setDescription(options.getDescription());
-		image.setName(options.getName());
+		image.setDescription(description);
+		image.setName(name);
 		image.setPlatform(vm.getPlatform());
 		image.setProviderMachineImageId(UUID.randomUUID().toString());
 		image.setProviderOwnerId(ctx.getAccountNumber());
-		image.setProviderRegionId(ctx.getRegionId());
+		image.setProviderRegionId(regionId);
 		image.setSoftware("");
 		image.setImageClass(ImageClass.MACHINE);
 		image.setType(MachineImageType.VOLUME);
-
-		try {
-			Thread.sleep(15000L + (random.nextInt(45) * 1000L));
-		} catch (InterruptedException ignore) {
-		}
-		if (optionalTask != null) {
-			optionalTask.setPercentComplete(50);
-		}
-		try {
-			Thread.sleep(15000L + (random.nextInt(45) * 1000L));
-		} catch (InterruptedException ignore) {
-		}
-		addCustomImage(endpoint, regionId, image);
-		if (optionalTask != null) {
-			optionalTask.completeWithResult(image);
-		}
-		try {
-			Thread.sleep(15000L + (random.nextInt(45) * 1000L));
-		} catch (InterruptedException ignore) {
-		}
-		image.setCurrentState(MachineImageState.ACTIVE);
-		return image;
+		MockImageCapture.submit(endpoint, regionId, image, listener);
 	}
 
-	@SuppressWarnings("deprecation")
 	@Override
 	public @Nonnull AsynchronousTask<String> imageVirtualMachine(String vmId, String name, String description)
 			throws CloudException, InternalException {
-		VirtualMachine vm = provider.getComputeServices().getVirtualMachineSupport().getVirtualMachine(vmId);
-
-		if (vm == null) {
-			throw new CloudException("No such virtual machine: " + vmId);
-		}
-		final ImageCreateOptions options = ImageCreateOptions.getInstance(vm, name, description);
-		final ProviderContext ctx = provider.getContext();
+		ProviderContext ctx = provider.getContext();
 
 		if (ctx == null) {
 			throw new CloudException("No context was set for this request");
 		}
-
-		final MachineImage image = new MachineImage();
-
-		image.setArchitecture(Architecture.I64);
-		image.setCurrentState(MachineImageState.PENDING);
-		image.setDescription(description);
-		image.setName(name);
-		image.setPlatform(vm.getPlatform());
-		image.setProviderMachineImageId(UUID.randomUUID().toString());
-		image.setProviderOwnerId(ctx.getAccountNumber());
-		image.setProviderRegionId(ctx.getRegionId());
-		image.setSoftware("");
-		image.setType(MachineImageType.VOLUME);
-
 		final AsynchronousTask<String> task = new AsynchronousTask<String>();
 
-		Thread t = new Thread() {
+		capture(ctx, vmId, name, description, new MockImageCapture.Listener() {
 
 			@Override
-			public void run() {
-				try {
-					MachineImage img = image(ctx, options, null);
+			public void progress(int percent) {
+				task.setPercentComplete(percent);
+			}
 
-					task.completeWithResult(img.getProviderMachineImageId());
-				} catch (Throwable t) {
-					task.complete(t);
-				}
+			@Override
+			public void registered(@Nonnull MachineImage image) {
+			}
 
+			@Override
+			public void activated(@Nonnull MachineImage image) {
+				task.completeWithResult(image.getProviderMachineImageId());
 			}
-		};
 
-		t.setName("Image Builder");
-		t.setDaemon(true);
-		t.start();
+			@Override
+			public void failed(@Nonnull Throwable cause) {
+				task.complete(cause);
+			}
+		});
 		return task;
 	}
 
@@ -433,7 +388,10 @@ public class MockImageSupport implements MachineImageSupport {
 		if (ctx == null) {
 			throw new CloudException("No context was provided for this request");
 		}
-		return getCustomImages(ctx);
+		if (!cls.equals(ImageClass.MACHINE)) {
+			return Collections.emptyList();
+		}
+		return getCatalog(ctx).listOwnedBy(ownedBy);
 	}
 
 	@Override
@@ -451,7 +409,7 @@ public class MockImageSupport implements MachineImageSupport {
 			throw new CloudException("No context was provided for this request");
 		}
 		if (accountId == null) {
-			return getPublicImages(ctx);
+			return getCatalog(ctx).listPublic();
 		}
 		return listImages(ImageClass.MACHINE, accountId);
 	}
@@ -500,42 +458,17 @@ public class MockImageSupport implements MachineImageSupport {
 		if (ctx == null) {
 			throw new CloudException("No context was set for this request");
 		}
-		synchronized (customImages) {
-			Map<String, Collection<MachineImage>> cloud = customImages.get(ctx.getEndpoint());
+		MockImageCatalog catalog = getCatalog(ctx);
+		MachineImage img = catalog.get(providerImageId, ctx.getAccountNumber());
 
-			if (cloud == null) {
-				cloud = new HashMap<String, Collection<MachineImage>>();
-				customImages.put(ctx.getEndpoint(), cloud);
-			}
-			Collection<MachineImage> images = cloud.get(ctx.getRegionId());
-			ArrayList<MachineImage> newImages = new ArrayList<MachineImage>();
-
-			if (images == null) {
-				images = new ArrayList<MachineImage>();
-				cloud.put(ctx.getRegionId(), images);
-				throw new CloudException("No such image: " + providerImageId);
-			}
-			boolean found = false;
-
-			for (MachineImage img : images) {
-				if (img.getProviderMachineImageId().equals(providerImageId)) {
-					found = true;
-				} else {
-					newImages.add(img);
-				}
-			}
-			if (!found) {
-				MachineImage img = getImage(providerImageId);
-
-				if (img == null) {
-					throw new CloudException("No such image: " + providerImageId);
-				}
-				if (ctx.getEffectiveAccountNumber().equals(img.getProviderOwnerId())) {
-					throw new CloudException("You do not own that image");
-				}
-				throw new CloudException("Removal failed for no discernable reason");
-			}
-			cloud.put(ctx.getRegionId(), newImages);
+		if (img == null) {
+			throw new CloudException("No such image: " + providerImageId);
+		}
+		if (!ctx.getEffectiveAccountNumber().equals(img.getProviderOwnerId())) {
+			throw new CloudException("You do not own that image");
+		}
+		if (!catalog.remove(img)) {
+			throw new CloudException("No such image: " + providerImageId);
 		}
 	}
 
@@ -555,54 +488,22 @@ public class MockImageSupport implements MachineImageSupport {
 		throw new OperationNotSupportedException("Image sharing is not yet mocked");
 	}
 
-	private boolean matches(MachineImage img, @Nullable String accountNumber, @Nullable String keyword,
-			@Nullable Platform platform, @Nullable Architecture architecture) {
-		if (accountNumber != null && !accountNumber.equals(img.getProviderOwnerId())) {
-			return false;
-		}
-		if (keyword != null) {
-			if (!img.getName().toLowerCase().contains(keyword) && !img.getDescription().toLowerCase().contains(keyword)) {
-				return false;
-			}
-		}
-		if (platform != null && !platform.equals(Platform.UNKNOWN)) {
-			Platform mine = img.getPlatform();
-
-			if (platform.isWindows() && !mine.isWindows()) {
-				return false;
-			}
-			if (platform.isUnix() && !mine.isUnix()) {
-				return false;
-			}
-			if (platform.isBsd() && !mine.isBsd()) {
-				return false;
-			}
-			if (platform.isLinux() && !mine.isLinux()) {
-				return false;
-			}
-			if (platform.equals(Platform.UNIX)) {
-				if (!mine.isUnix()) {
-					return false;
-				}
-			} else if (!platform.equals(mine)) {
-				return false;
-			}
-		}
-		return !(architecture != null && !img.getArchitecture().equals(architecture));
-	}
-
 	@Override
 	public @Nonnull Iterable<MachineImage> searchMachineImages(@Nullable String keyword, @Nullable Platform platform,
 			@Nullable Architecture architecture) throws CloudException, InternalException {
-		HashMap<String, MachineImage> images = new HashMap<String, MachineImage>();
+		ProviderContext ctx = provider.getContext();
 
-		for (MachineImage img : searchImages(null, keyword, platform, architecture, ImageClass.MACHINE)) {
-			images.put(img.getProviderMachineImageId(), img);
-		}
-		for (MachineImage img : searchPublicImages(keyword, platform, architecture, ImageClass.MACHINE)) {
-			images.put(img.getProviderMachineImageId(), img);
+		if (ctx == null) {
+			throw new CloudException("No context was set for this request");
 		}
-		return images.values();
+		MockImageCatalog catalog = getCatalog(ctx);
+		List<MachineImage> custom =
+				catalog.indexOwnedBy(ctx.getEffectiveAccountNumber()).search(keyword, platform, architecture,
+						ImageClass.MACHINE);
+		List<MachineImage> library = catalog.indexPublic().search(keyword, platform, architecture, ImageClass.MACHINE);
+
+		// custom and public images have different owners, so the two never overlap
+		return Iterables.concat(custom, library);
 	}
 
 	@Override
@@ -614,28 +515,9 @@ public class MockImageSupport implements MachineImageSupport {
 		if (ctx == null) {
 			throw new CloudException("No context was set for this request");
 		}
-		if (imageClasses == null) {
-			imageClasses = ImageClass.values();
-		}
-		ArrayList<MachineImage> images = new ArrayList<MachineImage>();
+		String owner = (accountNumber == null ? ctx.getEffectiveAccountNumber() : accountNumber);
 
-		for (ImageClass cls : imageClasses) {
-			Iterable<MachineImage> list;
-
-			if (accountNumber == null) {
-				list = listImages(cls);
-			} else {
-				list = listImages(cls, accountNumber);
-			}
-			for (MachineImage img : list) {
-				if (img != null && cls.equals(img.getImageClass())) {
-					if (matches(img, accountNumber, keyword, platform, architecture)) {
-						images.add(img);
-					}
-				}
-			}
-		}
-		return images;
+		return getCatalog(ctx).indexOwnedBy(owner).search(keyword, platform, architecture, imageClasses);
 	}
 
 	@Override
@@ -647,21 +529,7 @@ public class MockImageSupport implements MachineImageSupport {
 		if (ctx == null) {
 			throw new CloudException("No context was set for this request");
 		}
-		if (imageClasses == null || imageClasses.length < 1) {
-			imageClasses = ImageClass.values();
-		}
-		ArrayList<MachineImage> images = new ArrayList<MachineImage>();
-
-		for (ImageClass cls : imageClasses) {
-			for (MachineImage img : getPublicImages(ctx)) {
-				if (img != null && cls.equals(img.getImageClass())) {
-					if (matches(img, null, keyword, platform, architecture)) {
-						images.add(img);
-					}
-				}
-			}
-		}
-		return images;
+		return getCatalog(ctx).indexPublic().search(keyword, platform, architecture, imageClasses);
 	}
 
 	@Override
@@ -725,9 +593,13 @@ public class MockImageSupport implements MachineImageSupport {
 	@Override
 	public Iterable<MachineImage> listImages(ImageFilterOptions options) throws CloudException, InternalException {
 		ProviderContext ctx = provider.getContext();
-		List<MachineImage> images = new ArrayList<MachineImage>();
-		images.addAll(getCustomImages(ctx));
-		images.addAll(getPublicImages(ctx));
+
+		if (ctx == null) {
+			throw new CloudException("No context was set for this request");
+		}
+		MockImageCatalog catalog = getCatalog(ctx);
+		Iterable<MachineImage> images =
+				Iterables.concat(catalog.listOwnedBy(ctx.getEffectiveAccountNumber()), catalog.listPublic());
 		// String keyword = options.getRegex();
 		// String accountNumber = options.getAccountNumber();
 		// Architecture architecture = options.getArchitecture();
@@ -0,0 +1,391 @@
+/**
+ * Copyright (C) 2009-2012 enStratus Networks Inc.
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+
+package org.dasein.cloud.mock.compute.vm;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.dasein.cloud.compute.VmState;
+
+/**
+ * A bounded console log for a single mock VM. Every state transition is
+ * recorded on the console of its VM as it happens, whether or not the console
+ * is ever read. Each console is a ring of fixed-size records (the time and
+ * the state entered) carved out of a shared direct-memory slab; the log lines
+ * themselves are only rendered when the console is read, and each read
+ * renders just the records written since the previous one.
+ * <p>
+ * The slab has a fixed number of slots, so the memory spent on consoles is
+ * capped. Once every slot is taken, the console that has gone longest
+ * without recording a transition is evicted, or the oldest console if all of
+ * them are busy, and it is rebuilt from the state of its VM on the next
+ * transition or read. The size of each console defaults to 768 bytes (64
+ * records) and can be overridden through the
+ * <code>dasein.mock.vm.consoleSize</code> system property; the slab holds
+ * <code>dasein.mock.vm.consoleSlots</code> consoles (1,024 by default) and is
+ * allocated when the first console is created.
+ * </p>
+ */
+class MockConsole {
+
+	static private final int RECORD = 12;
+
+	static private final int size = Math.max(RECORD * 4, Integer.getInteger("dasein.mock.vm.consoleSize", 768));
+	static private final int capacity = size / RECORD;
+	static private final int slots = Math.max(1, Integer.getInteger("dasein.mock.vm.consoleSlots", 1024));
+
+	static private final AtomicReferenceFieldUpdater<MockVM, MockConsole> owner = AtomicReferenceFieldUpdater
+			.newUpdater(MockVM.class, MockConsole.class, "console");
+	static private final AtomicReferenceArray<MockConsole> consoles = new AtomicReferenceArray<MockConsole>(slots);
+	static private final ConcurrentLinkedQueue<Integer> free = new ConcurrentLinkedQueue<Integer>();
+	static private final VmState[] states = VmState.values();
+	static private volatile ByteBuffer slab;
+	static private int nextSlot;
+	static private int hand;
+	static private long claims;
+
+
+	static private @Nonnull ByteBuffer getSlab() {
+		ByteBuffer buffer = slab;
+
+		if (buffer == null) {
+			synchronized (MockConsole.class) {
+				buffer = slab;
+				if (buffer == null) {
+					buffer = ByteBuffer.allocateDirect(capacity * RECORD * slots);
+					slab = buffer;
+				}
+			}
+		}
+		return buffer;
+	}
+
+	/**
+	 * Assigns a slot of the slab to a new console. If no slot is free, the
+	 * clock hand sweeps the slab at most twice looking for a console that has
+	 * not recorded anything since the previous sweep; if every console stayed
+	 * busy, the oldest one seen is evicted instead, so a claim never spins.
+	 *
+	 * @param console
+	 *            the console, not yet visible to any other thread
+	 */
+	static private synchronized void claim(@Nonnull MockConsole console) {
+		Integer slot = free.poll();
+
+		if (slot == null && nextSlot < slots) {
+			slot = nextSlot++;
+		}
+		MockConsole oldest = null;
+
+		for (int i = 0; slot == null && i < slots * 2; i++) {
+			int candidate = hand;
+			MockConsole current = consoles.get(candidate);
+
+			hand = (hand + 1) % slots;
+			if (current == null) {
+				slot = free.poll();
+			} else if (current.referenced) {
+				current.referenced = false;
+				if (oldest == null || current.claimed < oldest.claimed) {
+					oldest = current;
+				}
+			} else if (current.evict()) {
+				slot = candidate;
+			}
+		}
+		if (slot == null && oldest != null && oldest.evict()) {
+			slot = oldest.slot;
+		}
+		if (slot == null) {
+			// every claimed slot is published under this lock, so a slot that
+			// could not be evicted has been released to the free list
+			slot = free.poll();
+		}
+		console.slot = slot;
+		console.base = slot * capacity * RECORD;
+		console.claimed = claims++;
+		consoles.set(slot, console);
+	}
+
+	/**
+	 * Renders the console output of a VM, rebuilding its console if it was
+	 * evicted.
+	 *
+	 * @param vm
+	 *            the VM
+	 * @return the output still held by the console
+	 */
+	static @Nonnull String read(@Nonnull MockVM vm) {
+		while (true) {
+			MockConsole console = vm.console;
+
+			if (console == null) {
+				synchronized (vm) {
+					console = open(vm, vm.currentState);
+				}
+			}
+			String output = console.render();
+
+			if (output != null) {
+				return output;
+			}
+			// evicted while being read
+			owner.compareAndSet(vm, console, null);
+		}
+	}
+
+	/**
+	 * Provides the console of a VM, creating it if the VM has none. A console
+	 * created for a VM that already has a history is seeded with its boot and
+	 * the state it is in. The caller holds the monitor of the VM.
+	 *
+	 * @param vm
+	 *            the VM
+	 * @param state
+	 *            the state the VM was in before any transition being
+	 *            recorded, or <code>null</code> for a VM that is just being
+	 *            launched
+	 * @return the console
+	 */
+	static private @Nonnull MockConsole open(@Nonnull MockVM vm, @Nullable VmState state) {
+		MockConsole console = vm.console;
+
+		if (console != null) {
+			return console;
+		}
+		console = new MockConsole(vm, getSlab());
+		claim(console);
+		if (state != null) {
+			long boot = (vm.lastBoot > 0L ? vm.lastBoot : vm.created);
+
+			console.record(VmState.PENDING, boot);
+			if (VmState.RUNNING.equals(state)) {
+				console.record(VmState.RUNNING, boot);
+			} else if (!VmState.PENDING.equals(state)) {
+				console.record(state, Math.max(boot, vm.lastTouched));
+			}
+		}
+		vm.console = console;
+		return console;
+	}
+
+	/**
+	 * Records a state transition on the console of a VM, creating the console
+	 * if the VM has none.
+	 *
+	 * @param vm
+	 *            the VM changing state; the caller holds its monitor
+	 * @param previous
+	 *            the state the VM is leaving or <code>null</code> if it is
+	 *            being launched
+	 * @param state
+	 *            the state being entered
+	 * @param now
+	 *            the time of the transition
+	 */
+	static void transition(@Nonnull MockVM vm, @Nullable VmState previous, @Nonnull VmState state, long now) {
+		while (!open(vm, previous).record(state, now)) {
+			// evicted by a concurrent claim
+			owner.compareAndSet(vm, vm.console, null);
+		}
+	}
+
+	static private @Nonnull String[] getLines(@Nonnull VmState state, @Nonnull MockVM vm, boolean windows) {
+		switch (state) {
+		case PENDING:
+			if (windows) {
+				return new String[] { "Windows Boot Manager", "Loading Windows",
+						"Starting services", "Computer name: " + vm.name };
+			}
+			return new String[] { "Booting kernel on " + vm.productId, "Initializing cgroup subsys cpu",
+					"eth0: link up", "cloud-init: fetching user data", "Mounting local filesystems" };
+		case RUNNING:
+			if (windows) {
+				return new String[] { "Windows is ready to use" };
+			}
+			return new String[] { "Starting OpenSSH server", vm.name + " login:" };
+		case REBOOTING:
+			return new String[] { "Received reboot request", "Stopping services", "Restarting system" };
+		case PAUSING:
+		case SUSPENDING:
+			return new String[] { "Freezing user space processes", "PM: suspending devices" };
+		case PAUSED:
+		case SUSPENDED:
+			return new String[] { "PM: suspended" };
+		case STOPPING:
+			return new String[] { "Received shutdown request", "Stopping services", "Unmounting filesystems" };
+		case STOPPED:
+			return new String[] { "System halted" };
+		case TERMINATED:
+			return new String[] { "Power down" };
+		default:
+			return new String[] { "Entering state " + state };
+		}
+	}
+
+	/**
+	 * Appends an uptime stamp such as <code>[   12.345000] </code>.
+	 */
+	static private void stamp(@Nonnull StringBuilder out, long millis) {
+		String seconds = Long.toString(millis / 1000L);
+		String micros = Long.toString((millis % 1000L) * 1000L);
+
+		out.append('[');
+		for (int i = seconds.length(); i < 5; i++) {
+			out.append(' ');
+		}
+		out.append(seconds).append('.');
+		for (int i = micros.length(); i < 6; i++) {
+			out.append('0');
+		}
+		out.append(micros).append("] ");
+	}
+
+
+	private final MockVM vm;
+	private final ByteBuffer buffer;
+	private int base;
+	private int slot;
+	private long claimed;
+	private long written;
+	private boolean released;
+	private volatile boolean referenced = true;
+	/** the rendered text of records <code>renderedFrom</code> up to <code>renderedTo</code> */
+	private String text = "";
+	private long renderedFrom;
+	private long renderedTo;
+	/** the length of the rendered text of each record, by ring position */
+	private final int[] lengths = new int[capacity];
+
+
+	private MockConsole(@Nonnull MockVM vm, @Nonnull ByteBuffer buffer) {
+		this.vm = vm;
+		this.buffer = buffer;
+	}
+
+	/**
+	 * Records a state transition, overwriting the oldest record once the
+	 * ring is full.
+	 *
+	 * @return <code>false</code> if the console was evicted
+	 */
+	private synchronized boolean record(@Nonnull VmState state, long time) {
+		if (released) {
+			return false;
+		}
+		int position = base + (int) (written % capacity) * RECORD;
+
+		buffer.putLong(position, time);
+		buffer.putInt(position + 8, state.ordinal());
+		written++;
+		referenced = true;
+		return true;
+	}
+
+	/**
+	 * Brings the rendered text up to date. Only the records written since the
+	 * previous read are rendered, and the text of records that have since
+	 * been overwritten is cut from the front.
+	 *
+	 * @return the rendered output or <code>null</code> if the console was
+	 *         evicted
+	 */
+	private synchronized @Nullable String render() {
+		if (released) {
+			return null;
+		}
+		if (renderedTo == written) {
+			return text;
+		}
+		long first = Math.max(0L, written - capacity);
+		long from = Math.max(first, renderedTo);
+		int drop = 0;
+
+		if (renderedTo <= first) {
+			drop = text.length();
+		} else {
+			for (long r = renderedFrom; r < first; r++) {
+				drop += lengths[(int) (r % capacity)];
+			}
+		}
+		boolean windows = (vm.platform != null && vm.platform.isWindows());
+		StringBuilder out = new StringBuilder(text.length() - drop + (int) (written - from) * 64);
+
+		out.append(text, drop, text.length());
+		for (long r = from; r < written; r++) {
+			int position = base + (int) (r % capacity) * RECORD;
+			long uptime = Math.max(0L, buffer.getLong(position) - vm.created);
+			int length = out.length();
+
+			for (String line : getLines(states[buffer.getInt(position + 8)], vm, windows)) {
+				stamp(out, uptime);
+				out.append(line).append('\n');
+			}
+			lengths[(int) (r % capacity)] = out.length() - length;
+		}
+		text = out.toString();
+		renderedFrom = first;
+		renderedTo = written;
+		return text;
+	}
+
+	/**
+	 * Evicts this console unless it has already been released.
+	 *
+	 * @return <code>true</code> if the slot of this console may be reused
+	 */
+	private boolean evict() {
+		synchronized (this) {
+			if (released) {
+				return false;
+			}
+			released = true;
+			text = "";
+		}
+		consoles.compareAndSet(slot, this, null);
+		owner.compareAndSet(vm, this, null);
+		return true;
+	}
+
+	/**
+	 * Returns the slot of this console to the slab.
+	 */
+	synchronized void release() {
+		if (!released) {
+			released = true;
+			text = "";
+			// offered before the slot is cleared so that a claim never sees an empty slot that is not free
+			free.offer(slot);
+			consoles.compareAndSet(slot, this, null);
+			owner.compareAndSet(vm, this, null);
+		}
+	}
+
+	static void release(@Nullable MockConsole console) {
+		if (console != null) {
+			console.release();
+		}
+	}
+}
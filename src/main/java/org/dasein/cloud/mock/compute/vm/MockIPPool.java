@@ -0,0 +1,267 @@
+/**
+ * Copyright (C) 2009-2012 enStratus Networks Inc.
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.mock.compute.vm;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.dasein.cloud.CloudException;
+
+/**
+ * Allocates private/public address pairs for mock VMs out of the 10/8,
+ * 192.168/16 and 172.16/12 ranges. Every private address maps to one bit in a
+ * bitmap that is claimed and cleared with compare-and-set, so allocation never
+ * takes a monitor. Addresses released by terminated VMs are queued on a free
+ * list and handed out again before the bitmap is scanned for fresh ones. The
+ * public address of a pair keeps the host part of the private address and
+ * adds 15 to its first octet.
+ */
+class MockIPPool {
+
+	static private class Range {
+
+		private final int quad1;
+		private final int firstQuad2;
+		private final int offset;
+		private final int size;
+
+
+		private Range(int quad1, int firstQuad2, int quad2Count, int offset) {
+			this.quad1 = quad1;
+			this.firstQuad2 = firstQuad2;
+			this.offset = offset;
+			this.size = quad2Count * QUAD3_COUNT * QUAD4_COUNT;
+		}
+
+		private boolean contains(int quad1, int quad2) {
+			int quad2Count = size / (QUAD3_COUNT * QUAD4_COUNT);
+
+			return (this.quad1 == quad1 && quad2 >= firstQuad2 && quad2 < firstQuad2 + quad2Count);
+		}
+	}
+
+
+	static private final int QUAD3_COUNT = 254;
+	static private final int QUAD4_COUNT = 253;
+
+	static private final Range[] ranges;
+	static private final int capacity;
+
+	static {
+		Range ten = new Range(10, 0, 254, 0);
+		Range home = new Range(192, 168, 1, ten.offset + ten.size);
+		Range office = new Range(172, 16, 16, home.offset + home.size);
+
+		ranges = new Range[] { ten, home, office };
+		capacity = office.offset + office.size;
+	}
+
+	static private final AtomicLongArray bits = new AtomicLongArray((capacity + 63) / 64);
+	static private final ConcurrentLinkedQueue<Integer> free = new ConcurrentLinkedQueue<Integer>();
+	static private final AtomicInteger cursor = new AtomicInteger();
+
+	static {
+		// bits past the end of the last range are never available
+		int last = bits.length() - 1;
+		int used = capacity - (last * 64);
+
+		if (used < 64) {
+			bits.set(last, -1L << used);
+		}
+	}
+
+
+	private MockIPPool() {
+	}
+
+	/**
+	 * Allocates a private/public address pair.
+	 *
+	 * @return the private address followed by the public address
+	 * @throws CloudException
+	 *             every address is in use
+	 */
+	static @Nonnull String[] allocate() throws CloudException {
+		return toPair(claim());
+	}
+
+	/**
+	 * Allocates a number of private/public address pairs.
+	 *
+	 * @param count
+	 *            the number of pairs
+	 * @return the pairs
+	 * @throws CloudException
+	 *             not enough addresses are available; none are allocated
+	 */
+	static @Nonnull String[][] allocate(@Nonnegative int count) throws CloudException {
+		String[][] pairs = new String[count][];
+		int i = 0;
+
+		try {
+			for (; i < count; i++) {
+				pairs[i] = toPair(claim());
+			}
+		} catch (CloudException e) {
+			for (int j = 0; j < i; j++) {
+				release(pairs[j][0]);
+			}
+			throw e;
+		}
+		return pairs;
+	}
+
+	/**
+	 * Returns the pair containing a private address to the pool. Addresses
+	 * outside the managed ranges and addresses that are not allocated are
+	 * ignored.
+	 *
+	 * @param privateIpAddress
+	 *            the private address of the pair
+	 */
+	static void release(@Nullable String privateIpAddress) {
+		int index = toIndex(privateIpAddress);
+
+		if (index < 0) {
+			return;
+		}
+		int word = index >>> 6;
+		long mask = 1L << (index & 63);
+
+		while (true) {
+			long current = bits.get(word);
+
+			if ((current & mask) == 0L) {
+				return;
+			}
+			if (bits.compareAndSet(word, current, current & ~mask)) {
+				free.offer(index);
+				return;
+			}
+		}
+	}
+
+	/**
+	 * @return the number of allocated addresses
+	 */
+	static int getAllocatedCount() {
+		int count = 0;
+
+		for (int i = 0; i < bits.length(); i++) {
+			count += Long.bitCount(bits.get(i));
+		}
+		return count - ((bits.length() * 64) - capacity);
+	}
+
+	static private boolean tryClaim(int index) {
+		int word = index >>> 6;
+		long mask = 1L << (index & 63);
+
+		while (true) {
+			long current = bits.get(word);
+
+			if ((current & mask) != 0L) {
+				return false;
+			}
+			if (bits.compareAndSet(word, current, current | mask)) {
+				return true;
+			}
+		}
+	}
+
+	static private int claim() throws CloudException {
+		Integer recycled;
+
+		while ((recycled = free.poll()) != null) {
+			if (tryClaim(recycled)) {
+				return recycled;
+			}
+		}
+		int words = bits.length();
+		int start = cursor.get();
+
+		for (int n = 0; n < words; n++) {
+			int word = (start + n) % words;
+			long current = bits.get(word);
+
+			while (current != -1L) {
+				long bit = Long.lowestOneBit(~current);
+
+				if (bits.compareAndSet(word, current, current | bit)) {
+					if (word != start) {
+						cursor.compareAndSet(start, word);
+					}
+					return (word << 6) + Long.numberOfTrailingZeros(bit);
+				}
+				current = bits.get(word);
+			}
+		}
+		throw new CloudException("Unable to allocate an IP address");
+	}
+
+	static private @Nonnull String[] toPair(int index) {
+		for (Range range : ranges) {
+			if (index < range.offset + range.size) {
+				int local = index - range.offset;
+				int quad4 = (local % QUAD4_COUNT) + 1;
+				int quad3 = (local / QUAD4_COUNT) % QUAD3_COUNT;
+				int quad2 = range.firstQuad2 + (local / (QUAD4_COUNT * QUAD3_COUNT));
+
+				return new String[] { range.quad1 + "." + quad2 + "." + quad3 + "." + quad4,
+						(15 + range.quad1) + "." + quad2 + "." + quad3 + "." + quad4 };
+			}
+		}
+		throw new IllegalArgumentException("Address index out of range: " + index);
+	}
+
+	static private int toIndex(@Nullable String privateIpAddress) {
+		if (privateIpAddress == null) {
+			return -1;
+		}
+		String[] parts = privateIpAddress.split("\\.");
+
+		if (parts.length != 4) {
+			return -1;
+		}
+		int quad1, quad2, quad3, quad4;
+
+		try {
+			quad1 = Integer.parseInt(parts[0]);
+			quad2 = Integer.parseInt(parts[1]);
+			quad3 = Integer.parseInt(parts[2]);
+			quad4 = Integer.parseInt(parts[3]);
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+		if (quad3 < 0 || quad3 >= QUAD3_COUNT || quad4 < 1 || quad4 > QUAD4_COUNT) {
+			return -1;
+		}
+		for (Range range : ranges) {
+			if (range.contains(quad1, quad2)) {
+				return range.offset + (((quad2 - range.firstQuad2) * QUAD3_COUNT + quad3) * QUAD4_COUNT) + (quad4 - 1);
+			}
+		}
+		return -1;
+	}
+}
@@ -0,0 +1,397 @@
+/**
+ * Copyright (C) 2009-2012 enStratus Networks Inc.
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.mock.compute.vm;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.dasein.cloud.CloudException;
+
+/**
+ * Places mock VMs into data centers with finite CPU and RAM capacity. Usage is
+ * tracked per data center with atomic counters that are reserved when a VM is
+ * launched and released when it terminates, so placement costs the same
+ * regardless of the size of the fleet. Which data center receives a VM is
+ * decided by a pluggable {@link Policy}. Data centers are kept apart by
+ * endpoint and region in the same way as {@link MockVMStore} shards, so two
+ * clouds that reuse a data center ID do not share its capacity.
+ * <p>
+ * Each data center holds <code>dasein.mock.dc.cpuCapacity</code> CPUs (100,000
+ * by default) and <code>dasein.mock.dc.ramCapacity</code> MB of RAM (400 TB
+ * by default). The policy is selected by <code>dasein.mock.vm.placement</code>:
+ * <code>firstFit</code> (the default), <code>spread</code> or
+ * <code>leastLoaded</code>.
+ * </p>
+ */
+public final class MockPlacement {
+
+	/**
+	 * The capacity and usage of a single data center.
+	 */
+	static public class Zone {
+
+		private final String dataCenterId;
+		private final long cpuCapacity;
+		private final long ramCapacity;
+		private final AtomicLong cpuUsed = new AtomicLong();
+		private final AtomicLong ramUsed = new AtomicLong();
+
+
+		private Zone(@Nonnull String dataCenterId, long cpuCapacity, long ramCapacity) {
+			this.dataCenterId = dataCenterId;
+			this.cpuCapacity = cpuCapacity;
+			this.ramCapacity = ramCapacity;
+		}
+
+		public @Nonnull String getDataCenterId() {
+			return dataCenterId;
+		}
+
+		public long getCpuCapacity() {
+			return cpuCapacity;
+		}
+
+		public long getCpuUsed() {
+			return cpuUsed.get();
+		}
+
+		public long getRamCapacity() {
+			return ramCapacity;
+		}
+
+		public long getRamUsed() {
+			return ramUsed.get();
+		}
+
+		/**
+		 * @return the larger of the CPU and RAM utilization, between 0 and 1
+		 */
+		public double getLoad() {
+			return Math.max((double) cpuUsed.get() / Math.max(1L, cpuCapacity),
+					(double) ramUsed.get() / Math.max(1L, ramCapacity));
+		}
+
+		/**
+		 * @param cpu
+		 *            CPUs requested
+		 * @param ram
+		 *            RAM requested in MB
+		 * @return <code>true</code> if the request currently fits
+		 */
+		public boolean fits(long cpu, long ram) {
+			return (cpuUsed.get() + cpu <= cpuCapacity && ramUsed.get() + ram <= ramCapacity);
+		}
+
+		private boolean reserve(long cpu, long ram) {
+			if (!take(cpuUsed, cpuCapacity, cpu)) {
+				return false;
+			}
+			if (!take(ramUsed, ramCapacity, ram)) {
+				cpuUsed.addAndGet(-cpu);
+				return false;
+			}
+			return true;
+		}
+
+		private void release(long cpu, long ram) {
+			cpuUsed.addAndGet(-cpu);
+			ramUsed.addAndGet(-ram);
+		}
+
+		static private boolean take(@Nonnull AtomicLong used, long capacity, long amount) {
+			while (true) {
+				long current = used.get();
+
+				if (current + amount > capacity) {
+					return false;
+				}
+				if (used.compareAndSet(current, current + amount)) {
+					return true;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Chooses the data center that receives a launch.
+	 */
+	static public interface Policy {
+
+		/**
+		 * @param zones
+		 *            the candidate data centers in the order the cloud lists
+		 *            them
+		 * @param cpu
+		 *            CPUs requested
+		 * @param ram
+		 *            RAM requested in MB
+		 * @return the chosen data center or <code>null</code> if none fits
+		 */
+		@Nullable
+		Zone select(@Nonnull List<Zone> zones, long cpu, long ram);
+	}
+
+
+	/**
+	 * Fills data centers in the order the cloud lists them.
+	 */
+	static public final Policy FIRST_FIT = new Policy() {
+
+		@Override
+		public Zone select(List<Zone> zones, long cpu, long ram) {
+			for (Zone zone : zones) {
+				if (zone.fits(cpu, ram)) {
+					return zone;
+				}
+			}
+			return null;
+		}
+	};
+
+	/**
+	 * Rotates launches across data centers.
+	 */
+	static public final Policy SPREAD = new Policy() {
+
+		private final AtomicInteger next = new AtomicInteger();
+
+
+		@Override
+		public Zone select(List<Zone> zones, long cpu, long ram) {
+			int start = (next.getAndIncrement() & Integer.MAX_VALUE);
+
+			for (int i = 0; i < zones.size(); i++) {
+				Zone zone = zones.get((start + i) % zones.size());
+
+				if (zone.fits(cpu, ram)) {
+					return zone;
+				}
+			}
+			return null;
+		}
+	};
+
+	/**
+	 * Chooses the data center with the lowest utilization.
+	 */
+	static public final Policy LEAST_LOADED = new Policy() {
+
+		@Override
+		public Zone select(List<Zone> zones, long cpu, long ram) {
+			Zone best = null;
+			double lowest = Double.MAX_VALUE;
+
+			for (Zone zone : zones) {
+				double load = zone.getLoad();
+
+				if (load < lowest && zone.fits(cpu, ram)) {
+					best = zone;
+					lowest = load;
+				}
+			}
+			return best;
+		}
+	};
+
+
+	static private final ConcurrentMap<String, ConcurrentMap<String, ConcurrentMap<String, Zone>>> zones =
+			new ConcurrentHashMap<String, ConcurrentMap<String, ConcurrentMap<String, Zone>>>();
+
+	static private volatile long cpuCapacity = Long.getLong("dasein.mock.dc.cpuCapacity", 100000L);
+	static private volatile long ramCapacity = Long.getLong("dasein.mock.dc.ramCapacity", 400L * 1024L * 1024L);
+	static private volatile Policy policy = getPolicy(System.getProperty("dasein.mock.vm.placement"));
+
+
+	private MockPlacement() {
+	}
+
+	static private @Nonnull String key(@Nullable String value) {
+		return (value == null ? "" : value);
+	}
+
+	static private @Nonnull <V> ConcurrentMap<String, V> child(
+			@Nonnull ConcurrentMap<String, ConcurrentMap<String, V>> parent, @Nonnull String key) {
+		ConcurrentMap<String, V> map = parent.get(key);
+
+		if (map == null) {
+			ConcurrentMap<String, V> m = new ConcurrentHashMap<String, V>();
+
+			map = parent.putIfAbsent(key, m);
+			if (map == null) {
+				map = m;
+			}
+		}
+		return map;
+	}
+
+	static private @Nonnull Policy getPolicy(@Nullable String name) {
+		if ("spread".equalsIgnoreCase(name)) {
+			return SPREAD;
+		}
+		if ("leastLoaded".equalsIgnoreCase(name)) {
+			return LEAST_LOADED;
+		}
+		return FIRST_FIT;
+	}
+
+	/**
+	 * Configures the placement policy.
+	 *
+	 * @param placementPolicy
+	 *            the policy
+	 */
+	static public void setPolicy(@Nonnull Policy placementPolicy) {
+		policy = placementPolicy;
+	}
+
+	/**
+	 * Configures the capacity of data centers not yet used by any launch.
+	 *
+	 * @param cpu
+	 *            the number of CPUs in each data center
+	 * @param ram
+	 *            the RAM of each data center in MB
+	 */
+	static public void setCapacity(@Nonnegative long cpu, @Nonnegative long ram) {
+		cpuCapacity = cpu;
+		ramCapacity = ram;
+	}
+
+	/**
+	 * @param endpoint
+	 *            the endpoint of the cloud
+	 * @param regionId
+	 *            the region of the data center
+	 * @param dataCenterId
+	 *            the data center ID
+	 * @return the capacity and usage of that data center
+	 */
+	static public @Nonnull Zone getZone(@Nullable String endpoint, @Nullable String regionId,
+			@Nonnull String dataCenterId) {
+		ConcurrentMap<String, Zone> region = child(child(zones, key(endpoint)), key(regionId));
+		Zone zone = region.get(dataCenterId);
+
+		if (zone == null) {
+			zone = new Zone(dataCenterId, cpuCapacity, ramCapacity);
+
+			Zone existing = region.putIfAbsent(dataCenterId, zone);
+
+			if (existing != null) {
+				zone = existing;
+			}
+		}
+		return zone;
+	}
+
+	/**
+	 * Reserves capacity for a number of identical VMs in a single data
+	 * center. When a data center is requested explicitly, only that data
+	 * center is considered; otherwise the policy chooses among the candidates,
+	 * falling back to the next choice if another launch claims the capacity
+	 * first.
+	 *
+	 * @param endpoint
+	 *            the endpoint of the cloud
+	 * @param regionId
+	 *            the region of the launch
+	 * @param requested
+	 *            the data center requested by the caller or <code>null</code>
+	 * @param candidates
+	 *            the active data centers of the region
+	 * @param cpu
+	 *            CPUs per VM
+	 * @param ram
+	 *            RAM per VM in MB
+	 * @param count
+	 *            the number of VMs
+	 * @return the data center in which the capacity was reserved
+	 * @throws CloudException
+	 *             no data center has room for the VMs
+	 */
+	static @Nonnull Zone reserve(@Nullable String endpoint, @Nullable String regionId, @Nullable String requested,
+			@Nonnull List<String> candidates, long cpu, long ram, @Nonnegative int count) throws CloudException {
+		long totalCpu = cpu * count;
+		long totalRam = ram * count;
+
+		if (requested != null) {
+			Zone zone = getZone(endpoint, regionId, requested);
+
+			if (!zone.reserve(totalCpu, totalRam)) {
+				throw new CloudException("Data center " + requested + " has no capacity for " + count + " more VMs");
+			}
+			return zone;
+		}
+		ArrayList<Zone> remaining = new ArrayList<Zone>(candidates.size());
+
+		for (String dataCenterId : candidates) {
+			remaining.add(getZone(endpoint, regionId, dataCenterId));
+		}
+		Policy current = policy;
+
+		while (!remaining.isEmpty()) {
+			Zone zone = current.select(remaining, totalCpu, totalRam);
+
+			if (zone == null) {
+				break;
+			}
+			if (zone.reserve(totalCpu, totalRam)) {
+				return zone;
+			}
+			remaining.remove(zone);
+		}
+		throw new CloudException("Unable to identify a data center with capacity for " + count + " more VMs");
+	}
+
+	/**
+	 * Returns capacity reserved by
+	 * {@link #reserve(String, String, String, List, long, long, int)}.
+	 *
+	 * @param zone
+	 *            the data center
+	 * @param cpu
+	 *            CPUs per VM
+	 * @param ram
+	 *            RAM per VM in MB
+	 * @param count
+	 *            the number of VMs
+	 */
+	static void release(@Nonnull Zone zone, long cpu, long ram, @Nonnegative int count) {
+		zone.release(cpu * count, ram * count);
+	}
+
+	/**
+	 * Returns the capacity held by a VM that has terminated.
+	 *
+	 * @param vm
+	 *            the VM
+	 */
+	static void release(@Nonnull MockVM vm) {
+		if (vm.zone != null) {
+			release(vm.zone, vm.cpuCount, vm.ramSize, 1);
+		}
+	}
+}
@@ -0,0 +1,336 @@
+/**
+ * Copyright (C) 2009-2012 enStratus Networks Inc.
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.mock.compute.vm;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Properties;
+import java.util.TreeMap;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.dasein.cloud.compute.Architecture;
+import org.dasein.cloud.compute.VirtualMachineProduct;
+import org.dasein.util.uom.storage.Gigabyte;
+import org.dasein.util.uom.storage.Megabyte;
+import org.dasein.util.uom.storage.Storage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The VM products offered by the mock cloud. The catalog is loaded once per
+ * JVM from <code>products.properties</code> next to this class, or from the
+ * file named by the <code>dasein.mock.products</code> system property, and is
+ * immutable afterwards. Products are indexed by ID, by architecture and, for
+ * all products as well as per architecture, by CPU count and RAM size so that
+ * lookups never scan the catalog. RAM sizes are configured in megabytes and
+ * reported in gigabytes.
+ */
+public class MockProductCatalog {
+
+	static private final Logger logger = LoggerFactory.getLogger(MockProductCatalog.class);
+
+	static private class Holder {
+
+		static private final MockProductCatalog instance = load();
+	}
+
+	/**
+	 * A set of products together with sorted indexes over their CPU count and
+	 * RAM size in MB.
+	 */
+	static private class Ranges {
+
+		private List<VirtualMachineProduct> products = new ArrayList<VirtualMachineProduct>();
+		private final NavigableMap<Integer, List<VirtualMachineProduct>> byCpu =
+				new TreeMap<Integer, List<VirtualMachineProduct>>();
+		private final NavigableMap<Long, List<VirtualMachineProduct>> byRam =
+				new TreeMap<Long, List<VirtualMachineProduct>>();
+		private final Map<VirtualMachineProduct, Long> ramSizes = new HashMap<VirtualMachineProduct, Long>();
+
+
+		private void add(@Nonnull VirtualMachineProduct product, long ramSize) {
+			products.add(product);
+			ramSizes.put(product, ramSize);
+			index(byCpu, product.getCpuCount(), product);
+			index(byRam, ramSize, product);
+		}
+
+		private void freeze() {
+			products = Collections.unmodifiableList(products);
+		}
+
+		/**
+		 * Selects the products within CPU and RAM ranges. The narrower of the
+		 * two sorted indexes supplies the candidates, which are then checked
+		 * against the other range.
+		 */
+		private @Nonnull List<VirtualMachineProduct> select(int minCpu, int maxCpu, long minRam, long maxRam) {
+			if (minCpu > maxCpu || minRam > maxRam) {
+				return Collections.emptyList();
+			}
+			NavigableMap<Integer, List<VirtualMachineProduct>> cpuRange = byCpu.subMap(minCpu, true, maxCpu, true);
+			NavigableMap<Long, List<VirtualMachineProduct>> ramRange = byRam.subMap(minRam, true, maxRam, true);
+			ArrayList<VirtualMachineProduct> matches = new ArrayList<VirtualMachineProduct>();
+
+			if (cpuRange.size() <= ramRange.size()) {
+				for (List<VirtualMachineProduct> list : cpuRange.values()) {
+					for (VirtualMachineProduct product : list) {
+						long size = ramSizes.get(product);
+
+						if (size >= minRam && size <= maxRam) {
+							matches.add(product);
+						}
+					}
+				}
+			} else {
+				for (List<VirtualMachineProduct> list : ramRange.values()) {
+					for (VirtualMachineProduct product : list) {
+						if (product.getCpuCount() >= minCpu && product.getCpuCount() <= maxCpu) {
+							matches.add(product);
+						}
+					}
+				}
+			}
+			return matches;
+		}
+
+		static private <K> void index(@Nonnull NavigableMap<K, List<VirtualMachineProduct>> index, @Nonnull K key,
+				@Nonnull VirtualMachineProduct product) {
+			List<VirtualMachineProduct> list = index.get(key);
+
+			if (list == null) {
+				list = new ArrayList<VirtualMachineProduct>();
+				index.put(key, list);
+			}
+			list.add(product);
+		}
+	}
+
+
+	/**
+	 * @return the catalog shared by all mock VM services
+	 */
+	static public @Nonnull MockProductCatalog getInstance() {
+		return Holder.instance;
+	}
+
+	static private @Nonnull MockProductCatalog load() {
+		Properties properties = new Properties();
+		String path = System.getProperty("dasein.mock.products");
+		InputStream input = null;
+
+		try {
+			if (path != null && !path.isEmpty()) {
+				input = new FileInputStream(new File(path));
+			} else {
+				input = MockProductCatalog.class.getResourceAsStream("products.properties");
+			}
+			if (input == null) {
+				logger.warn("No product catalog found; the mock cloud offers no VM products");
+			} else {
+				properties.load(input);
+			}
+		} catch (IOException e) {
+			logger.warn("Unable to load the product catalog from " + (path == null ? "the classpath" : path), e);
+		} finally {
+			if (input != null) {
+				try {
+					input.close();
+				} catch (IOException ignore) {
+					// ignore
+				}
+			}
+		}
+		return parse(properties);
+	}
+
+	static private @Nonnull MockProductCatalog parse(@Nonnull Properties properties) {
+		MockProductCatalog catalog = new MockProductCatalog();
+		String ids = properties.getProperty("products", "");
+
+		for (String id : ids.split(",")) {
+			id = id.trim();
+			if (id.isEmpty()) {
+				continue;
+			}
+			String prefix = "product." + id + ".";
+
+			try {
+				VirtualMachineProduct p = new VirtualMachineProduct();
+				int ramSize = Integer.parseInt(properties.getProperty(prefix + "ramSize", "1024").trim());
+				int rootVolumeSize = Integer.parseInt(properties.getProperty(prefix + "rootVolumeSize", "20").trim());
+
+				p.setProviderProductId(id);
+				p.setName(properties.getProperty(prefix + "name", id));
+				p.setDescription(properties.getProperty(prefix + "description", id));
+				p.setCpuCount(Integer.parseInt(properties.getProperty(prefix + "cpuCount", "1").trim()));
+				p.setRamSize(toGigabytes(ramSize));
+				p.setRootVolumeSize(new Storage<Gigabyte>(rootVolumeSize, Storage.GIGABYTE));
+				p.setStandardHourlyRate(Float.parseFloat(properties.getProperty(prefix + "hourlyRate", "0").trim()));
+				catalog.add(p, ramSize, parseArchitectures(properties.getProperty(prefix + "architectures")));
+			} catch (NumberFormatException e) {
+				logger.warn("Skipping invalid product " + id + ": " + e.getMessage());
+			}
+		}
+		catalog.freeze();
+		return catalog;
+	}
+
+	static private @Nonnull Collection<Architecture> parseArchitectures(@Nullable String value) {
+		ArrayList<Architecture> architectures = new ArrayList<Architecture>();
+
+		if (value != null) {
+			for (String name : value.split(",")) {
+				try {
+					architectures.add(Architecture.valueOf(name.trim().toUpperCase()));
+				} catch (IllegalArgumentException e) {
+					logger.warn("Ignoring unknown architecture: " + name);
+				}
+			}
+		}
+		if (architectures.isEmpty()) {
+			architectures.add(Architecture.I64);
+		}
+		return architectures;
+	}
+
+	/**
+	 * Products report their RAM in gigabytes, as they always have; sizes that
+	 * are not whole gigabytes become fractions.
+	 *
+	 * @param megabytes
+	 *            the configured RAM size in MB
+	 * @return the RAM size in GB
+	 */
+	static private @Nonnull Storage<Gigabyte> toGigabytes(int megabytes) {
+		if (megabytes % 1024 == 0) {
+			return new Storage<Gigabyte>(megabytes / 1024, Storage.GIGABYTE);
+		}
+		return new Storage<Megabyte>(megabytes, Storage.MEGABYTE).convertTo(Storage.GIGABYTE);
+	}
+
+
+	private final Ranges all = new Ranges();
+	private final Map<String, VirtualMachineProduct> byId = new HashMap<String, VirtualMachineProduct>();
+	private final Map<Architecture, Ranges> byArchitecture = new EnumMap<Architecture, Ranges>(Architecture.class);
+	private Collection<Architecture> architectures;
+
+
+	private MockProductCatalog() {
+	}
+
+	private void add(@Nonnull VirtualMachineProduct product, long ramSize, @Nonnull Collection<Architecture> supported) {
+		if (byId.put(product.getProviderProductId(), product) != null) {
+			logger.warn("Duplicate product ignored: " + product.getProviderProductId());
+			return;
+		}
+		all.add(product, ramSize);
+		for (Architecture architecture : supported) {
+			Ranges ranges = byArchitecture.get(architecture);
+
+			if (ranges == null) {
+				ranges = new Ranges();
+				byArchitecture.put(architecture, ranges);
+			}
+			ranges.add(product, ramSize);
+		}
+	}
+
+	private void freeze() {
+		all.freeze();
+		for (Ranges ranges : byArchitecture.values()) {
+			ranges.freeze();
+		}
+		architectures = Collections.unmodifiableCollection(new ArrayList<Architecture>(byArchitecture.keySet()));
+	}
+
+	/**
+	 * @param productId
+	 *            the product ID
+	 * @return the matching product or <code>null</code>
+	 */
+	@Nullable
+	VirtualMachineProduct get(@Nullable String productId) {
+		return (productId == null ? null : byId.get(productId));
+	}
+
+	/**
+	 * @return every product in the catalog
+	 */
+	@Nonnull
+	List<VirtualMachineProduct> list() {
+		return all.products;
+	}
+
+	/**
+	 * @param architecture
+	 *            the architecture
+	 * @return the products that support that architecture
+	 */
+	@Nonnull
+	List<VirtualMachineProduct> list(@Nullable Architecture architecture) {
+		Ranges ranges = (architecture == null ? null : byArchitecture.get(architecture));
+
+		return (ranges == null ? Collections.<VirtualMachineProduct> emptyList() : ranges.products);
+	}
+
+	/**
+	 * Selects the products within CPU and RAM ranges through the sorted
+	 * indexes, without looking at products outside the ranges.
+	 *
+	 * @param architecture
+	 *            the architecture or <code>null</code> for any architecture
+	 * @param minCpu
+	 *            the minimum CPU count, inclusive
+	 * @param maxCpu
+	 *            the maximum CPU count, inclusive
+	 * @param minRam
+	 *            the minimum RAM size in MB, inclusive
+	 * @param maxRam
+	 *            the maximum RAM size in MB, inclusive
+	 * @return the matching products
+	 */
+	@Nonnull
+	List<VirtualMachineProduct> select(@Nullable Architecture architecture, int minCpu, int maxCpu, long minRam,
+			long maxRam) {
+		Ranges ranges = (architecture == null ? all : byArchitecture.get(architecture));
+
+		return (ranges == null ? Collections.<VirtualMachineProduct> emptyList() : ranges.select(minCpu, maxCpu,
+				minRam, maxRam));
+	}
+
+	/**
+	 * @return the architectures supported by at least one product
+	 */
+	public @Nonnull Collection<Architecture> getArchitectures() {
+		return architectures;
+	}
+}
@@ -0,0 +1,619 @@
+/**
+ * Copyright (C) 2009-2012 enStratus Networks Inc.
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.mock.compute.vm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.InternalException;
+import org.dasein.cloud.ProviderContext;
+import org.dasein.cloud.compute.SpotPrice;
+import org.dasein.cloud.compute.SpotVirtualMachineRequest;
+import org.dasein.cloud.compute.SpotVirtualMachineRequestType;
+import org.dasein.cloud.compute.VMLaunchOptions;
+import org.dasein.cloud.compute.VmState;
+import org.dasein.cloud.mock.MockClock;
+import org.dasein.cloud.mock.MockIdAllocator;
+import org.dasein.cloud.mock.MockScheduler;
+import org.dasein.util.CalendarWrapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Simulates a spot market. Every product in every data center has its own
+ * price series: a mean-reverting random walk in log space whose price changes
+ * at exponentially distributed intervals. Series are kept apart by endpoint
+ * and region in the same way as {@link MockVMStore} shards, and each walk is
+ * seeded from the endpoint, region, data center and product IDs and generated lazily from a fixed epoch up to the
+ * latest time anyone has asked about, so months of history cost nothing until
+ * they are queried; price changes are kept in sorted arrays and time ranges
+ * are located by binary search.
+ * <p>
+ * Open spot requests are matched by a background pass on the
+ * {@link MockScheduler}: a request is fulfilled in the cheapest of its data
+ * centers once the price falls to its bid, and its VMs are interrupted when
+ * the price rises above it again. Persistent requests then reopen; one-time
+ * requests close. The same happens to an active request once all of its VMs
+ * have terminated for any other reason. The VMs of a request are launched as one batch on a
+ * background thread rather than on the scheduler, on behalf of the account
+ * that submitted the request. Closed and cancelled requests remain listed for
+ * <code>dasein.mock.spot.retention</code> milliseconds (one hour by default)
+ * and are then forgotten; the matcher stops once no requests remain.
+ * </p>
+ * <p>
+ * History starts <code>dasein.mock.spot.history</code> milliseconds before
+ * startup (90 days by default); prices change every
+ * <code>dasein.mock.spot.meanInterval</code> milliseconds on average (15
+ * minutes by default); requests are matched every
+ * <code>dasein.mock.spot.matchInterval</code> milliseconds (30 seconds by
+ * default).
+ * </p>
+ */
+public final class MockSpotMarket {
+
+	static private final Logger logger = LoggerFactory.getLogger(MockSpotMarket.class);
+
+	/** the long-run spot price as a fraction of the on-demand price */
+	static private final double MEAN_DISCOUNT = 0.3;
+	static private final double REVERSION = 0.05;
+	static private final double VOLATILITY = 0.08;
+
+	static private final long epoch;
+
+	static {
+		long history = Long.getLong("dasein.mock.spot.history", CalendarWrapper.DAY * 90L);
+
+		epoch = ((MockClock.getInstance().now() - history) / CalendarWrapper.DAY) * CalendarWrapper.DAY;
+	}
+
+	static private final long meanInterval = Math.max(1000L,
+			Long.getLong("dasein.mock.spot.meanInterval", CalendarWrapper.MINUTE * 15L));
+	static private volatile long matchInterval = Math.max(1000L,
+			Long.getLong("dasein.mock.spot.matchInterval", 30000L));
+
+	static private final ConcurrentMap<List<String>, Series> series = new ConcurrentHashMap<List<String>, Series>();
+	static private final long retention = Math.max(0L,
+			Long.getLong("dasein.mock.spot.retention", CalendarWrapper.HOUR));
+
+	static private final Executor fulfiller = new ThreadPoolExecutor(0, 1, 30L, TimeUnit.SECONDS,
+			new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+
+				@Override
+				public Thread newThread(Runnable task) {
+					Thread t = new Thread(task, "Mock Spot Fulfiller");
+
+					t.setDaemon(true);
+					return t;
+				}
+			});
+
+	static private final ConcurrentMap<String, Request> requests = new ConcurrentHashMap<String, Request>();
+	static private final MockIdAllocator idAllocator = MockIdAllocator.getInstance("spot");
+	static private final AtomicBoolean running = new AtomicBoolean(false);
+
+
+	static private class Series {
+
+		private final Random random;
+		private final double ceiling;
+		private final double floor;
+		private final double mean;
+		private long[] timestamps = new long[1024];
+		private float[] prices = new float[1024];
+		private int count;
+		private long clock;
+		private double logPrice;
+
+
+		private Series(@Nonnull List<String> key, float onDemandPrice) {
+			long seed = 17L;
+
+			for (String part : key) {
+				for (char c : part.toCharArray()) {
+					seed = 31L * seed + c;
+				}
+				seed = 31L * seed + '/';
+			}
+			random = new Random(seed);
+			ceiling = Math.log(onDemandPrice * 3.0);
+			floor = Math.log(onDemandPrice * 0.05);
+			mean = Math.log(onDemandPrice * MEAN_DISCOUNT);
+			logPrice = mean;
+			clock = epoch;
+			append(clock, (float) Math.exp(logPrice));
+		}
+
+		private void append(long timestamp, float price) {
+			if (count == timestamps.length) {
+				timestamps = Arrays.copyOf(timestamps, count * 2);
+				prices = Arrays.copyOf(prices, count * 2);
+			}
+			timestamps[count] = timestamp;
+			prices[count] = price;
+			count++;
+		}
+
+		private void extend(long until) {
+			until = Math.min(until, MockClock.getInstance().now());
+			while (clock < until) {
+				clock += 1L + (long) (-Math.log(1.0 - random.nextDouble()) * meanInterval);
+				logPrice += REVERSION * (mean - logPrice) + VOLATILITY * random.nextGaussian();
+				logPrice = Math.max(floor, Math.min(ceiling, logPrice));
+				append(clock, Math.round(Math.exp(logPrice) * 10000.0) / 10000.0f);
+			}
+		}
+
+		/**
+		 * @return the index of the last price change at or before the
+		 *         timestamp, or 0 if the timestamp precedes the epoch
+		 */
+		private int indexOf(long timestamp) {
+			int index = Arrays.binarySearch(timestamps, 0, count, timestamp);
+
+			if (index < 0) {
+				index = -index - 2;
+			}
+			return Math.max(0, index);
+		}
+
+		synchronized float getPrice(long timestamp) {
+			extend(timestamp);
+			return prices[indexOf(timestamp)];
+		}
+
+		synchronized @Nonnull SpotPrice[] getPrices(long from, long to) {
+			extend(to);
+
+			int first = indexOf(from);
+			int last = indexOf(to);
+
+			if (last > first && timestamps[last] >= to) {
+				last--;
+			}
+			SpotPrice[] history = new SpotPrice[last - first + 1];
+
+			for (int i = first; i <= last; i++) {
+				history[i - first] = SpotPrice.getInstance(Math.max(from, timestamps[i]), prices[i]);
+			}
+			return history;
+		}
+	}
+
+	static private enum RequestState {
+		OPEN, FULFILLING, ACTIVE, CANCELLED, CLOSED
+	}
+
+	static private class Request {
+
+		private final String requestId;
+		private final ProviderContext context;
+		private final String endpoint;
+		private final String regionId;
+		private final String owner;
+		private final String productId;
+		private final String imageId;
+		private final float maximumPrice;
+		private final SpotVirtualMachineRequestType type;
+		private final int vmCount;
+		private final long created;
+		private final long validFrom;
+		private final long validUntil;
+		private final String launchGroup;
+		private final List<String> dataCenterIds;
+		private final float onDemandPrice;
+		private final MockVMSupport support;
+		private RequestState state = RequestState.OPEN;
+		private String dataCenterId;
+		private long fulfilled;
+		private long closed;
+		private List<String> vmIds = Collections.emptyList();
+
+
+		@SuppressWarnings("deprecation")
+		private Request(@Nonnull String requestId, @Nonnull ProviderContext context, @Nonnull String productId,
+				@Nonnull String imageId, float maximumPrice, @Nonnull SpotVirtualMachineRequestType type, int vmCount,
+				long validFrom, long validUntil, @Nullable String launchGroup, @Nonnull List<String> dataCenterIds,
+				float onDemandPrice, @Nonnull MockVMSupport support) {
+			this.requestId = requestId;
+			this.context = context;
+			this.endpoint = context.getEndpoint();
+			this.regionId = context.getRegionId();
+			this.owner = context.getAccountNumber();
+			this.productId = productId;
+			this.imageId = imageId;
+			this.maximumPrice = maximumPrice;
+			this.type = type;
+			this.vmCount = vmCount;
+			this.created = MockClock.getInstance().now();
+			this.validFrom = validFrom;
+			this.validUntil = validUntil;
+			this.launchGroup = launchGroup;
+			this.dataCenterIds = dataCenterIds;
+			this.onDemandPrice = onDemandPrice;
+			this.support = support;
+		}
+	}
+
+
+	/**
+	 * Launches the VMs of a request in a single batch off the scheduler
+	 * thread.
+	 */
+	static private class Fulfillment implements Runnable {
+
+		private final Request request;
+		private final String dataCenterId;
+
+
+		private Fulfillment(@Nonnull Request request, @Nonnull String dataCenterId) {
+			this.request = request;
+			this.dataCenterId = dataCenterId;
+		}
+
+		@Override
+		public void run() {
+			VMLaunchOptions options =
+					VMLaunchOptions.getInstance(request.productId, request.imageId, request.requestId,
+							"Spot instance for " + request.requestId).inDataCenter(dataCenterId);
+			List<String> vmIds = null;
+
+			try {
+				vmIds = request.support.launchMany(request.context, options, request.vmCount);
+			} catch (CloudException e) {
+				logger.warn("Unable to fulfill spot request " + request.requestId + ": " + e.getMessage());
+			} catch (InternalException e) {
+				logger.warn("Unable to fulfill spot request " + request.requestId, e);
+			}
+			synchronized (request) {
+				// a request cancelled in the meantime leaves its VMs running
+				if (!RequestState.FULFILLING.equals(request.state)) {
+					return;
+				}
+				if (vmIds == null) {
+					request.state = RequestState.OPEN;
+				} else {
+					request.state = RequestState.ACTIVE;
+					request.dataCenterId = dataCenterId;
+					request.fulfilled = MockClock.getInstance().now();
+					request.vmIds = vmIds;
+				}
+			}
+		}
+	}
+
+
+	private MockSpotMarket() {
+	}
+
+	/**
+	 * Configures the interval between matching passes.
+	 *
+	 * @param millis
+	 *            the interval in milliseconds
+	 */
+	static public void setMatchInterval(@Nonnegative long millis) {
+		matchInterval = Math.max(1L, millis);
+	}
+
+	static private @Nonnull String key(@Nullable String value) {
+		return (value == null ? "" : value);
+	}
+
+	static private @Nonnull Series getSeries(@Nullable String endpoint, @Nullable String regionId,
+			@Nonnull String dataCenterId, @Nonnull String productId, float onDemandPrice) {
+		List<String> key = Arrays.asList(key(endpoint), key(regionId), dataCenterId, productId);
+		Series s = series.get(key);
+
+		if (s == null) {
+			s = new Series(key, onDemandPrice);
+
+			Series existing = series.putIfAbsent(key, s);
+
+			if (existing != null) {
+				s = existing;
+			}
+		}
+		return s;
+	}
+
+	/**
+	 * Lists the price changes of a product in a data center over a window. The
+	 * first entry is the price in effect at the start of the window.
+	 *
+	 * @param endpoint
+	 *            the endpoint of the cloud
+	 * @param regionId
+	 *            the region of the data center
+	 * @param dataCenterId
+	 *            the data center
+	 * @param productId
+	 *            the product
+	 * @param onDemandPrice
+	 *            the on-demand hourly price of the product
+	 * @param from
+	 *            the start of the window
+	 * @param to
+	 *            the end of the window
+	 * @return the price changes in chronological order
+	 */
+	static @Nonnull SpotPrice[] getPriceHistory(@Nullable String endpoint, @Nullable String regionId,
+			@Nonnull String dataCenterId, @Nonnull String productId, float onDemandPrice, long from, long to) {
+		return getSeries(endpoint, regionId, dataCenterId, productId, onDemandPrice).getPrices(from, to);
+	}
+
+	/**
+	 * Opens a spot request on behalf of the account of a context and makes
+	 * sure the matcher is running.
+	 */
+	@SuppressWarnings("deprecation")
+	static @Nonnull SpotVirtualMachineRequest submit(@Nonnull MockVMSupport support, @Nonnull ProviderContext ctx,
+			@Nonnull String productId, @Nonnull String imageId, float maximumPrice,
+			@Nullable SpotVirtualMachineRequestType type, int vmCount, long validFrom, long validUntil,
+			@Nullable String launchGroup, @Nonnull List<String> dataCenterIds, float onDemandPrice) {
+		String regionId = ctx.getRegionId();
+		String requestId = "sir-" + regionId + "-" + idAllocator.next(regionId);
+		Request request =
+				new Request(requestId, ctx, productId, imageId, maximumPrice,
+						(type == null ? SpotVirtualMachineRequestType.ONE_TIME : type), Math.max(1, vmCount), validFrom,
+						validUntil, launchGroup, dataCenterIds, onDemandPrice, support);
+
+		requests.put(requestId, request);
+		if (running.compareAndSet(false, true)) {
+			schedule();
+		}
+		synchronized (request) {
+			return toSpotRequest(request);
+		}
+	}
+
+	/**
+	 * Cancels a spot request. VMs already launched for the request keep
+	 * running.
+	 *
+	 * @throws CloudException
+	 *             no such request is visible to the owner
+	 */
+	static void cancel(@Nonnull String endpoint, @Nonnull String regionId, @Nonnull String owner,
+			@Nonnull String requestId) throws CloudException {
+		Request request = requests.get(requestId);
+
+		if (request == null || !isVisible(request, endpoint, regionId, owner)) {
+			throw new CloudException("No such spot request: " + requestId);
+		}
+		synchronized (request) {
+			if (request.closed == 0L) {
+				request.state = RequestState.CANCELLED;
+				request.closed = MockClock.getInstance().now();
+			}
+		}
+	}
+
+	/**
+	 * Lists the spot requests visible to an owner that match the criteria.
+	 *
+	 * @param type
+	 *            the request type to match or <code>null</code> for any
+	 * @param productId
+	 *            the product to match or <code>null</code> for any
+	 * @param validFrom
+	 *            if positive, only requests still valid at or after this time
+	 *            match
+	 * @param validUntil
+	 *            if positive, only requests valid at or before this time match
+	 * @return the matching requests
+	 */
+	static @Nonnull Iterable<SpotVirtualMachineRequest> list(@Nonnull String endpoint, @Nonnull String regionId,
+			@Nonnull String owner, @Nullable SpotVirtualMachineRequestType type, @Nullable String productId,
+			long validFrom, long validUntil) {
+		ArrayList<SpotVirtualMachineRequest> list = new ArrayList<SpotVirtualMachineRequest>();
+
+		for (Request request : requests.values()) {
+			if (!isVisible(request, endpoint, regionId, owner)) {
+				continue;
+			}
+			if ((type != null && !type.equals(request.type))
+					|| (productId != null && !productId.equals(request.productId))) {
+				continue;
+			}
+			synchronized (request) {
+				long end = (request.closed > 0L ? request.closed : request.validUntil);
+
+				if (validFrom > 0L && end > 0L && end < validFrom) {
+					continue;
+				}
+				if (validUntil > 0L && request.validFrom > validUntil) {
+					continue;
+				}
+				list.add(toSpotRequest(request));
+			}
+		}
+		return list;
+	}
+
+	static private boolean isVisible(@Nonnull Request request, @Nonnull String endpoint, @Nonnull String regionId,
+			@Nonnull String owner) {
+		return (request.endpoint.equals(endpoint) && request.regionId.equals(regionId) && request.owner.equals(owner));
+	}
+
+	static private @Nonnull SpotVirtualMachineRequest toSpotRequest(@Nonnull Request request) {
+		return SpotVirtualMachineRequest.getInstance(request.requestId, request.maximumPrice, request.type,
+				request.imageId, request.productId, request.created, request.validFrom, request.validUntil,
+				request.fulfilled, request.dataCenterId, request.launchGroup);
+	}
+
+	static private void schedule() {
+		MockScheduler.getInstance().schedule(new Runnable() {
+
+			@Override
+			public void run() {
+				match(MockClock.getInstance().now());
+				if (requests.isEmpty()) {
+					running.set(false);
+					// a request may have been submitted after the check
+					if (requests.isEmpty() || !running.compareAndSet(false, true)) {
+						return;
+					}
+				}
+				schedule();
+			}
+		}, matchInterval);
+	}
+
+	/**
+	 * Hands open requests whose bid has been reached to the fulfiller,
+	 * interrupts active requests whose bid has been exceeded, retires active
+	 * requests whose VMs have all terminated and forgets requests that have
+	 * been closed for longer than the retention period.
+	 *
+	 * @param now
+	 *            the current time
+	 */
+	static void match(long now) {
+		Iterator<Request> it = requests.values().iterator();
+
+		while (it.hasNext()) {
+			Request request = it.next();
+
+			synchronized (request) {
+				switch (request.state) {
+				case OPEN:
+					if (request.validUntil > 0L && now > request.validUntil) {
+						close(request, now);
+					} else if (now >= request.validFrom) {
+						String dataCenterId = getCheapest(request, now);
+
+						if (dataCenterId != null) {
+							request.state = RequestState.FULFILLING;
+							fulfiller.execute(new Fulfillment(request, dataCenterId));
+						}
+					}
+					break;
+				case ACTIVE:
+					Series prices =
+							getSeries(request.endpoint, request.regionId, request.dataCenterId, request.productId,
+									request.onDemandPrice);
+
+					if (prices.getPrice(now) > request.maximumPrice) {
+						interrupt(request, now);
+					} else if (!hasLiveVMs(request)) {
+						retire(request, now);
+					}
+					break;
+				case CANCELLED:
+				case CLOSED:
+					if (now - request.closed >= retention) {
+						it.remove();
+					}
+					break;
+				default:
+					break;
+				}
+			}
+		}
+	}
+
+	static private void close(@Nonnull Request request, long now) {
+		request.state = RequestState.CLOSED;
+		request.closed = now;
+	}
+
+	/**
+	 * @return the cheapest data center of the request whose price is within
+	 *         the bid, or <code>null</code> if there is none
+	 */
+	static private @Nullable String getCheapest(@Nonnull Request request, long now) {
+		String cheapest = null;
+		float lowest = Float.MAX_VALUE;
+
+		for (String dataCenterId : request.dataCenterIds) {
+			float price =
+					getSeries(request.endpoint, request.regionId, dataCenterId, request.productId,
+							request.onDemandPrice).getPrice(now);
+
+			if (price <= request.maximumPrice && price < lowest) {
+				cheapest = dataCenterId;
+				lowest = price;
+			}
+		}
+		return cheapest;
+	}
+
+	static private void interrupt(@Nonnull Request request, long now) {
+		for (String vmId : request.vmIds) {
+			try {
+				request.support.terminate(request.context, vmId);
+			} catch (Exception e) {
+				logger.warn("Unable to interrupt spot instance " + vmId + ": " + e.getMessage());
+			}
+		}
+		retire(request, now);
+	}
+
+	/**
+	 * @return <code>true</code> if any VM launched for an active request has
+	 *         not terminated
+	 */
+	static private boolean hasLiveVMs(@Nonnull Request request) {
+		MockVMStore store = MockVMStore.findInstance(request.endpoint, request.regionId);
+
+		if (store == null) {
+			return false;
+		}
+		for (String vmId : request.vmIds) {
+			MockVM vm = store.get(vmId);
+
+			if (vm != null && !VmState.TERMINATED.equals(vm.currentState)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Ends the fulfillment of a request whose VMs are gone: persistent
+	 * requests reopen, one-time requests close.
+	 */
+	static private void retire(@Nonnull Request request, long now) {
+		request.vmIds = Collections.emptyList();
+		if (SpotVirtualMachineRequestType.PERSISTENT.equals(request.type)) {
+			request.state = RequestState.OPEN;
+			request.dataCenterId = null;
+			request.fulfilled = 0L;
+		} else {
+			close(request, now);
+		}
+	}
+}
@@ -0,0 +1,223 @@
+/**
+ * Copyright (C) 2009-2012 enStratus Networks Inc.
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.mock.compute.vm;
+
+import java.io.ByteArrayOutputStream;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.lang.ref.WeakReference;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.apache.commons.codec.binary.Hex;
+
+/**
+ * A user data payload held by one or more mock VMs. Payloads are content
+ * addressed: they are keyed by their SHA-256 digest and stored compressed, so
+ * identical payloads pushed to any number of VMs are kept once. The store
+ * holds payloads weakly and forgets them once the last VM referencing them is
+ * gone. The decompressed text is cached softly after the first read.
+ */
+class MockUserData {
+
+	static private final Charset UTF8 = Charset.forName("UTF-8");
+
+	static private class Entry extends WeakReference<MockUserData> {
+
+		private final String digest;
+
+
+		private Entry(@Nonnull MockUserData data, @Nonnull ReferenceQueue<MockUserData> queue) {
+			super(data, queue);
+			this.digest = data.digest;
+		}
+	}
+
+
+	static private final ConcurrentMap<String, Entry> payloads = new ConcurrentHashMap<String, Entry>();
+	static private final ReferenceQueue<MockUserData> queue = new ReferenceQueue<MockUserData>();
+
+
+	/**
+	 * Provides the stored payload with the specified content, storing it if
+	 * no VM holds it yet.
+	 *
+	 * @param text
+	 *            the user data
+	 * @return the shared payload or <code>null</code> if there is no user data
+	 */
+	static @Nullable MockUserData getInstance(@Nullable String text) {
+		if (text == null) {
+			return null;
+		}
+		purge();
+
+		byte[] bytes = text.getBytes(UTF8);
+		String digest = digest(bytes);
+
+		while (true) {
+			Entry entry = payloads.get(digest);
+			MockUserData data = (entry == null ? null : entry.get());
+
+			if (data != null) {
+				return data;
+			}
+			data = new MockUserData(digest, compress(bytes), bytes.length);
+
+			Entry created = new Entry(data, queue);
+
+			if (entry == null ? payloads.putIfAbsent(digest, created) == null : payloads.replace(digest, entry, created)) {
+				data.cache = new SoftReference<String>(text);
+				return data;
+			}
+		}
+	}
+
+	/**
+	 * @return the number of distinct payloads currently stored
+	 */
+	static int getStoredCount() {
+		purge();
+		return payloads.size();
+	}
+
+	static private void purge() {
+		Entry entry;
+
+		while ((entry = (Entry) queue.poll()) != null) {
+			payloads.remove(entry.digest, entry);
+		}
+	}
+
+	static private @Nonnull String digest(@Nonnull byte[] bytes) {
+		try {
+			return new String(Hex.encodeHex(MessageDigest.getInstance("SHA-256").digest(bytes)));
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-256 is not supported by this JVM", e);
+		}
+	}
+
+	static private @Nonnull byte[] compress(@Nonnull byte[] bytes) {
+		Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+
+		try {
+			deflater.setInput(bytes);
+			deflater.finish();
+
+			ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(64, bytes.length / 4));
+			byte[] buffer = new byte[4096];
+
+			while (!deflater.finished()) {
+				int count = deflater.deflate(buffer);
+
+				out.write(buffer, 0, count);
+			}
+			return out.toByteArray();
+		} finally {
+			deflater.end();
+		}
+	}
+
+
+	private final String digest;
+	private final byte[] compressed;
+	private final int length;
+	private volatile SoftReference<String> cache;
+
+
+	private MockUserData(@Nonnull String digest, @Nonnull byte[] compressed, int length) {
+		this.digest = digest;
+		this.compressed = compressed;
+		this.length = length;
+	}
+
+	/**
+	 * @return the SHA-256 digest of the payload in hex
+	 */
+	@Nonnull
+	String getDigest() {
+		return digest;
+	}
+
+	/**
+	 * @return the number of bytes the payload occupies in the store
+	 */
+	int getCompressedSize() {
+		return compressed.length;
+	}
+
+	/**
+	 * @return the user data, decompressed on first use
+	 */
+	@Nonnull
+	String getText() {
+		SoftReference<String> ref = cache;
+		String text = (ref == null ? null : ref.get());
+
+		if (text == null) {
+			text = new String(decompress(), UTF8);
+			cache = new SoftReference<String>(text);
+		}
+		return text;
+	}
+
+	/**
+	 * Drops the cached text, as the garbage collector does under memory
+	 * pressure; the next {@link #getText()} decompresses the payload again.
+	 */
+	void dropText() {
+		cache = null;
+	}
+
+	private @Nonnull byte[] decompress() {
+		Inflater inflater = new Inflater();
+
+		try {
+			byte[] bytes = new byte[length];
+			int offset = 0;
+
+			inflater.setInput(compressed);
+			while (offset < length && !inflater.finished()) {
+				int count = inflater.inflate(bytes, offset, length - offset);
+
+				if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+					break;
+				}
+				offset += count;
+			}
+			if (offset != length) {
+				throw new IllegalStateException("User data " + digest + " is truncated");
+			}
+			return bytes;
+		} catch (DataFormatException e) {
+			throw new IllegalStateException("User data " + digest + " is corrupt", e);
+		} finally {
+			inflater.end();
+		}
+	}
+}
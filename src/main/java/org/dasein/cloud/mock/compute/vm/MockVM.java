@@ -0,0 +1,140 @@
+/**
+ * Copyright (C) 2009-2012 enStratus Networks Inc.
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.mock.compute.vm;
+
+import java.util.Collections;
+import java.util.Map;
+
+import org.dasein.cloud.compute.Platform;
+import org.dasein.cloud.compute.VirtualMachine;
+import org.dasein.cloud.compute.VmState;
+import org.dasein.cloud.mock.MockScheduler;
+
+/**
+ * The in-memory record of a single mock virtual machine. Instances are held by
+ * {@link MockVMStore} and mutated in place; state changes happen while holding
+ * the monitor of the record itself so that work on different VMs never
+ * contends. The state sequence counts state changes and lets scheduled
+ * transitions detect that they have gone stale; the pending transition itself
+ * is cancelled as soon as the VM changes state so that the scheduler never
+ * holds on to records that are gone. Tags are held in an immutable
+ * map that is replaced, never modified.
+ * <p>
+ * The version is bumped on every change to the record and stamps the cached
+ * projection: an immutable snapshot of the fields that make up a
+ * {@link VirtualMachine}, taken while holding the monitor of the record and
+ * retaken only once the version or the IP address assigned to the VM no
+ * longer match. Every caller gets its own {@link VirtualMachine} built from
+ * the snapshot.
+ * </p>
+ */
+class MockVM {
+
+	static class Projection {
+
+		final long version;
+		final String ipAddressId;
+		final String vmId;
+		final String dataCenterId;
+		final String name;
+		final String description;
+		final VmState currentState;
+		final long created;
+		final String imageId;
+		final long lastBoot;
+		final long lastPaused;
+		final long lastTouched;
+		final Platform platform;
+		final String owner;
+		final String privateIpAddress;
+		final String publicIpAddress;
+		final String productId;
+		final String vlanId;
+		final String subnetId;
+		final String rootUser;
+		final String rootPassword;
+		final Map<String, String> tags;
+
+
+		/**
+		 * Takes a snapshot of a VM. The caller must hold the monitor of the VM.
+		 */
+		Projection(MockVM vm, String ipAddressId) {
+			this.version = vm.version;
+			this.ipAddressId = ipAddressId;
+			this.vmId = vm.vmId;
+			this.dataCenterId = vm.dataCenterId;
+			this.name = vm.name;
+			this.description = vm.description;
+			this.currentState = vm.currentState;
+			this.created = vm.created;
+			this.imageId = vm.imageId;
+			this.lastBoot = vm.lastBoot;
+			this.lastPaused = vm.lastPaused;
+			this.lastTouched = vm.lastTouched;
+			this.platform = vm.platform;
+			this.owner = vm.owner;
+			this.privateIpAddress = vm.privateIpAddress;
+			this.publicIpAddress = vm.publicIpAddress;
+			this.productId = vm.productId;
+			this.vlanId = vm.vlanId;
+			this.subnetId = vm.subnetId;
+			this.rootUser = vm.rootUser;
+			this.rootPassword = vm.rootPassword;
+			this.tags = vm.tags;
+		}
+	}
+
+
+	public String vmId;
+	public String dataCenterId;
+	/** the data center capacity reserved for this VM; see {@link MockPlacement} */
+	public MockPlacement.Zone zone;
+	public String name;
+	public String description;
+	public volatile VmState currentState;
+	public long stateSequence;
+	public MockScheduler.Event pending;
+	public long created;
+	public String imageId;
+	public long lastBoot;
+	public long lastPaused;
+	public volatile long lastTouched;
+	public Platform platform;
+	public String owner;
+	public String privateIpAddress;
+	public String publicIpAddress;
+	public String productId;
+	public int cpuCount;
+	public long ramSize;
+	public String vlanId;
+	public String subnetId;
+	public String rootUser;
+	public String rootPassword;
+	public MockUserData userData;
+	// public String shellKey;
+	public volatile Map<String, String> tags = Collections.emptyMap();
+	public MockVMStore store;
+	public long position;
+	public volatile long version;
+	public volatile Projection projection;
+	public volatile MockConsole console;
+	/** start/end pairs of the recent periods spent running; see {@link MockVMStatistics} */
+	public volatile long[] uptime;
+}
@@ -0,0 +1,246 @@
+/**
+ * Copyright (C) 2009-2012 enStratus Networks Inc.
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.mock.compute.vm;
+
+import java.util.Random;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.compute.VmState;
+import org.dasein.cloud.mock.MockClock;
+import org.dasein.cloud.mock.MockScheduler;
+import org.dasein.cloud.mock.compute.vm.MockVMTransitions.Operation;
+import org.dasein.cloud.mock.network.firewall.MockFirewallSupport;
+import org.dasein.cloud.mock.network.ip.MockIPSupport;
+
+/**
+ * Drives mock VMs through their transitional states. Whenever a VM enters a
+ * state such as {@link VmState#PENDING} or {@link VmState#STOPPING}, its next
+ * transition is enqueued on the {@link MockScheduler} with a latency drawn from
+ * a configurable distribution: a fixed minimum plus an exponentially
+ * distributed remainder with the configured mean. Running VMs may also be
+ * scheduled to crash after an exponentially distributed uptime. Each VM has
+ * at most one pending transition, which is cancelled whenever the VM changes
+ * state or is removed from its store.
+ * <p>
+ * Which states may follow which is decided by {@link MockVMTransitions}.
+ * Operations are applied with compare-and-set semantics: the target state is
+ * derived from the state last observed, and the change only takes effect if
+ * the VM is still in that state, all while holding the monitor of that VM
+ * alone so that operations on different VMs never contend.
+ * </p>
+ * <p>
+ * Defaults can be overridden through the <code>dasein.mock.vm.minimumLatency</code>,
+ * <code>dasein.mock.vm.meanLatency</code> and <code>dasein.mock.vm.meanTimeToCrash</code>
+ * system properties (all in milliseconds; a mean time to crash of 0 disables
+ * crashes).
+ * </p>
+ */
+public final class MockVMLifecycle {
+
+	static private final Random random = new Random();
+
+	static private volatile long minimumLatency = Long.getLong("dasein.mock.vm.minimumLatency", 15000L);
+	static private volatile long meanLatency = Long.getLong("dasein.mock.vm.meanLatency", 150000L);
+	static private volatile long meanTimeToCrash = Long.getLong("dasein.mock.vm.meanTimeToCrash", 86400000L);
+
+
+	private MockVMLifecycle() {
+	}
+
+	/**
+	 * Configures the latency of state transitions.
+	 *
+	 * @param minimum
+	 *            the minimum latency in milliseconds
+	 * @param mean
+	 *            the mean latency in milliseconds, never less than the minimum
+	 */
+	static public void setTransitionLatency(@Nonnegative long minimum, @Nonnegative long mean) {
+		minimumLatency = minimum;
+		meanLatency = Math.max(minimum, mean);
+	}
+
+	/**
+	 * Configures how long running VMs survive before crashing.
+	 *
+	 * @param mean
+	 *            the mean uptime in milliseconds, or 0 to disable crashes
+	 */
+	static public void setMeanTimeToCrash(@Nonnegative long mean) {
+		meanTimeToCrash = mean;
+	}
+
+	/**
+	 * Applies a lifecycle operation to a VM.
+	 *
+	 * @param vm
+	 *            the VM
+	 * @param operation
+	 *            the operation
+	 * @return the state the VM was moved into
+	 * @throws CloudException
+	 *             the operation is not allowed in the current state of the VM
+	 */
+	static @Nonnull VmState apply(@Nonnull MockVM vm, @Nonnull Operation operation) throws CloudException {
+		while (true) {
+			VmState current = vm.currentState;
+			VmState target = MockVMTransitions.target(operation, current);
+
+			if (target == null) {
+				throw new CloudException(operation.getGuardMessage());
+			}
+			if (compareAndEnter(vm, current, target)) {
+				return target;
+			}
+		}
+	}
+
+	/**
+	 * Moves a VM into a new state if it is still in the expected state. The
+	 * caller must not hold the monitor of the VM.
+	 *
+	 * @param vm
+	 *            the VM
+	 * @param expected
+	 *            the state the VM must be in
+	 * @param target
+	 *            the new state
+	 * @return <code>true</code> if the VM changed state
+	 */
+	static boolean compareAndEnter(@Nonnull MockVM vm, @Nonnull VmState expected, @Nonnull VmState target) {
+		synchronized (vm) {
+			if (vm.currentState != expected) {
+				return false;
+			}
+			if (VmState.TERMINATED.equals(target)) {
+				vm.lastTouched = MockClock.getInstance().now();
+			}
+			enter(vm, target);
+		}
+		if (VmState.TERMINATED.equals(target)) {
+			released(vm);
+		}
+		return true;
+	}
+
+	/**
+	 * Releases the network resources held by a VM that has just terminated.
+	 *
+	 * @param vm
+	 *            the terminated VM
+	 */
+	static private void released(@Nonnull MockVM vm) {
+		MockIPSupport.vmTerminated(vm.vmId);
+		MockFirewallSupport.vmTerminated(vm.vmId);
+	}
+
+	/**
+	 * Moves a VM into a new state and schedules whatever transition follows it.
+	 * The caller must hold the monitor of the VM unless it has not yet been
+	 * published to a {@link MockVMStore}.
+	 *
+	 * @param vm
+	 *            the VM changing state
+	 * @param state
+	 *            the new state
+	 */
+	static void enter(@Nonnull MockVM vm, @Nonnull VmState state) {
+		VmState previous = vm.currentState;
+		long now = MockClock.getInstance().now();
+
+		cancel(vm);
+		vm.currentState = state;
+		vm.stateSequence++;
+		vm.version++;
+		if (vm.store != null) {
+			vm.store.stateChanged(vm, previous, state);
+		}
+		MockConsole.transition(vm, previous, state, now);
+		MockVMStatistics.transition(vm, previous, state, now);
+		if (VmState.TERMINATED.equals(state) && !VmState.TERMINATED.equals(previous)) {
+			MockPlacement.release(vm);
+			MockVMReaper.terminated(vm);
+		}
+		schedule(vm);
+	}
+
+	/**
+	 * Cancels the transition scheduled for a VM, if any. The caller must hold
+	 * the monitor of the VM.
+	 *
+	 * @param vm
+	 *            the VM
+	 */
+	static void cancel(@Nonnull MockVM vm) {
+		MockScheduler.Event event = vm.pending;
+
+		if (event != null) {
+			vm.pending = null;
+			event.cancel();
+		}
+	}
+
+	static private long exponential(long mean) {
+		return (long) (-Math.log(1.0 - random.nextDouble()) * mean);
+	}
+
+	static private void schedule(@Nonnull final MockVM vm) {
+		final long sequence = vm.stateSequence;
+		final VmState target;
+		long delay;
+
+		VmState next = MockVMTransitions.settle(vm.currentState);
+
+		if (next != null) {
+			long min = minimumLatency;
+
+			target = next;
+			delay = min + exponential(Math.max(0L, meanLatency - min));
+		} else if (VmState.RUNNING.equals(vm.currentState) && meanTimeToCrash > 0L) {
+			// whoops, will crash
+			target = VmState.TERMINATED;
+			delay = exponential(meanTimeToCrash);
+		} else {
+			return;
+		}
+		vm.pending = MockScheduler.getInstance().schedule(new Runnable() {
+
+			@Override
+			public void run() {
+				synchronized (vm) {
+					if (vm.stateSequence != sequence) {
+						return;
+					}
+					vm.pending = null;
+					if (VmState.TERMINATED.equals(target)) {
+						vm.lastTouched = MockClock.getInstance().now();
+					}
+					enter(vm, target);
+				}
+				if (VmState.TERMINATED.equals(target)) {
+					released(vm);
+				}
+			}
+		}, delay);
+	}
+}
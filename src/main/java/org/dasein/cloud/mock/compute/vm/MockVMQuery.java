@@ -0,0 +1,121 @@
+/**
+ * Copyright (C) 2009-2012 enStratus Networks Inc.
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.mock.compute.vm;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.dasein.cloud.compute.VmState;
+
+/**
+ * Criteria for selecting VMs out of a {@link MockVMStore} through its
+ * secondary indexes. The owner is always a mandatory criterion; all other
+ * criteria are combined either with AND (the default) or with OR when
+ * {@link #matchingAny()} is set. A name pattern is only evaluated over the
+ * candidates that survive the indexed criteria.
+ */
+class MockVMQuery {
+
+	static public @Nonnull MockVMQuery getInstance() {
+		return new MockVMQuery();
+	}
+
+
+	private String owner;
+	private Collection<VmState> states;
+	private Map<String, String> tags;
+	private Pattern pattern;
+	private boolean matchesAny;
+
+
+	private MockVMQuery() {
+	}
+
+	public @Nullable String getOwner() {
+		return owner;
+	}
+
+	public @Nullable Collection<VmState> getStates() {
+		return states;
+	}
+
+	public @Nullable Map<String, String> getTags() {
+		return tags;
+	}
+
+	public @Nullable Pattern getPattern() {
+		return pattern;
+	}
+
+	public boolean isMatchesAny() {
+		return matchesAny;
+	}
+
+	public @Nonnull MockVMQuery ownedBy(@Nullable String owner) {
+		this.owner = owner;
+		return this;
+	}
+
+	public @Nonnull MockVMQuery inStates(@Nullable Collection<VmState> states) {
+		this.states = (states == null || states.isEmpty() ? null : states);
+		return this;
+	}
+
+	public @Nonnull MockVMQuery withTags(@Nullable Map<String, String> tags) {
+		this.tags = (tags == null || tags.isEmpty() ? null : tags);
+		return this;
+	}
+
+	public @Nonnull MockVMQuery matchingRegex(@Nullable String regex) {
+		this.pattern = (regex == null ? null : Pattern.compile(regex));
+		return this;
+	}
+
+	public @Nonnull MockVMQuery matchingAny() {
+		this.matchesAny = true;
+		return this;
+	}
+
+	/**
+	 * @return <code>true</code> if any criterion other than the owner was set
+	 */
+	public boolean hasCriteria() {
+		return (states != null || tags != null || pattern != null);
+	}
+
+	/**
+	 * Checks the name pattern against a candidate VM.
+	 *
+	 * @param vm
+	 *            the candidate
+	 * @return <code>true</code> if there is no pattern or the VM name or
+	 *         description matches it
+	 */
+	boolean matchesPattern(@Nonnull MockVM vm) {
+		if (pattern == null) {
+			return true;
+		}
+		return ((vm.name != null && pattern.matcher(vm.name).matches()) || (vm.description != null && pattern.matcher(
+				vm.description).matches()));
+	}
+}
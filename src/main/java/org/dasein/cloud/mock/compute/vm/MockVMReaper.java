@@ -0,0 +1,195 @@
+/**
+ * Copyright (C) 2009-2012 enStratus Networks Inc.
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.mock.compute.vm;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+
+import org.dasein.cloud.compute.VmState;
+import org.dasein.cloud.mock.MockClock;
+import org.dasein.cloud.mock.MockScheduler;
+import org.dasein.util.CalendarWrapper;
+
+/**
+ * Evicts terminated VMs once their retention period has passed. Terminated VMs
+ * are kept in an index ordered by termination time, and a background pass on
+ * the {@link MockScheduler} removes only the entries at the head of that index
+ * that have expired, so the cost of reaping is proportional to the number of
+ * expired VMs and reads never have to modify the store. The pass runs only
+ * while terminated VMs are waiting to be evicted. The addresses of evicted
+ * VMs are returned to the {@link MockIPPool} and their consoles to the
+ * console slab.
+ * <p>
+ * The retention period defaults to 10 minutes and can be overridden through
+ * the <code>dasein.mock.vm.retention</code> system property; the interval
+ * between passes defaults to 5 seconds and can be overridden through
+ * <code>dasein.mock.vm.reapInterval</code> (both in milliseconds).
+ * </p>
+ */
+public final class MockVMReaper {
+
+	static private class Entry implements Comparable<Entry> {
+
+		private final long terminated;
+		private final long sequence;
+		private final MockVM vm;
+
+
+		private Entry(long terminated, long sequence, MockVM vm) {
+			this.terminated = terminated;
+			this.sequence = sequence;
+			this.vm = vm;
+		}
+
+		@Override
+		public int compareTo(Entry other) {
+			if (terminated != other.terminated) {
+				return (terminated < other.terminated ? -1 : 1);
+			}
+			return (sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1));
+		}
+	}
+
+
+	static private final ConcurrentSkipListSet<Entry> index = new ConcurrentSkipListSet<Entry>();
+	static private final AtomicLong sequence = new AtomicLong();
+	static private final AtomicBoolean running = new AtomicBoolean(false);
+
+	static private volatile long retention = Long.getLong("dasein.mock.vm.retention", CalendarWrapper.MINUTE * 10L);
+	static private volatile long interval = Long.getLong("dasein.mock.vm.reapInterval", 5000L);
+
+
+	private MockVMReaper() {
+	}
+
+	/**
+	 * @return how long terminated VMs remain visible, in milliseconds
+	 */
+	static public long getRetention() {
+		return retention;
+	}
+
+	/**
+	 * Configures how long terminated VMs remain visible.
+	 *
+	 * @param millis
+	 *            the retention period in milliseconds
+	 */
+	static public void setRetention(@Nonnegative long millis) {
+		retention = millis;
+	}
+
+	/**
+	 * Configures the interval between reaping passes.
+	 *
+	 * @param millis
+	 *            the interval in milliseconds
+	 */
+	static public void setInterval(@Nonnegative long millis) {
+		interval = Math.max(1L, millis);
+	}
+
+	/**
+	 * Checks whether a terminated VM has outlived its retention period.
+	 *
+	 * @param vm
+	 *            the VM to check
+	 * @param now
+	 *            the current time
+	 * @return <code>true</code> if the VM is terminated and expired
+	 */
+	static boolean isExpired(@Nonnull MockVM vm, long now) {
+		return (VmState.TERMINATED.equals(vm.currentState) && (now - vm.lastTouched) > retention);
+	}
+
+	/**
+	 * Records that a VM was terminated and makes sure the reaping pass is
+	 * running. Called by {@link MockVMLifecycle} while holding the monitor of
+	 * the VM.
+	 *
+	 * @param vm
+	 *            the terminated VM
+	 */
+	static void terminated(@Nonnull MockVM vm) {
+		index.add(new Entry(vm.lastTouched, sequence.getAndIncrement(), vm));
+		if (running.compareAndSet(false, true)) {
+			schedule();
+		}
+	}
+
+	static private void schedule() {
+		MockScheduler.getInstance().schedule(new Runnable() {
+
+			@Override
+			public void run() {
+				reap(MockClock.getInstance().now());
+				if (index.isEmpty()) {
+					running.set(false);
+					// a VM may have been terminated after the check
+					if (index.isEmpty() || !running.compareAndSet(false, true)) {
+						return;
+					}
+				}
+				schedule();
+			}
+		}, interval);
+	}
+
+	/**
+	 * Removes every VM whose retention period has expired.
+	 *
+	 * @param now
+	 *            the current time
+	 * @return the number of VMs removed
+	 */
+	static int reap(long now) {
+		Iterator<Entry> it = index.iterator();
+		int count = 0;
+
+		while (it.hasNext()) {
+			Entry head = it.next();
+
+			if (now - head.terminated <= retention) {
+				break;
+			}
+			it.remove();
+
+			MockVM vm = head.vm;
+			MockVMStore store;
+
+			synchronized (vm) {
+				if (vm.lastTouched != head.terminated || !isExpired(vm, now)) {
+					continue;
+				}
+				store = vm.store;
+			}
+			if (store != null && store.remove(vm.vmId) != null) {
+				MockIPPool.release(vm.privateIpAddress);
+				MockConsole.release(vm.console);
+				count++;
+			}
+		}
+		return count;
+	}
+}
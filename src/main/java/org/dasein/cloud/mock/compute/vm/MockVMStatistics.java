@@ -0,0 +1,286 @@
+/**
+ * Copyright (C) 2009-2012 enStratus Networks Inc.
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.mock.compute.vm;
+
+import java.util.Iterator;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.dasein.cloud.compute.VmState;
+import org.dasein.cloud.compute.VmStatistics;
+import org.dasein.cloud.mock.MockClock;
+import org.dasein.util.CalendarWrapper;
+
+import com.google.common.collect.AbstractIterator;
+
+/**
+ * Synthesizes VM statistics on demand. Every sample is a pure function of a
+ * seed derived from the VM ID and of the index of the sample interval, so any
+ * window can be recomputed at any time without storing a time series: a query
+ * costs CPU proportional to the number of samples it covers and no heap beyond
+ * the statistics it returns. CPU follows a per-VM baseline with a daily cycle
+ * and noise; disk and network traffic scale with CPU. Samples are only taken
+ * while the VM is {@link VmState#RUNNING}: each VM keeps the start and end of
+ * its most recent running periods (up to
+ * <code>dasein.mock.vm.uptimeHistory</code>, 64 by default), and intervals
+ * outside of them have no samples.
+ * <p>
+ * The sample interval defaults to 5 minutes and can be overridden through the
+ * <code>dasein.mock.vm.statisticsInterval</code> system property (in
+ * milliseconds). Periods are downsampled into at most
+ * <code>dasein.mock.vm.statisticsPoints</code> buckets (1,000 by default).
+ * </p>
+ */
+public final class MockVMStatistics {
+
+	static private volatile long interval = Math.max(1L,
+			Long.getLong("dasein.mock.vm.statisticsInterval", CalendarWrapper.MINUTE * 5L));
+	static private volatile int points = Math.max(1, Integer.getInteger("dasein.mock.vm.statisticsPoints", 1000));
+	static private final int history = Math.max(1, Integer.getInteger("dasein.mock.vm.uptimeHistory", 64));
+
+
+	private MockVMStatistics() {
+	}
+
+	/**
+	 * Configures the interval between synthetic samples.
+	 *
+	 * @param millis
+	 *            the interval in milliseconds
+	 */
+	static public void setSampleInterval(@Nonnegative long millis) {
+		interval = Math.max(1L, millis);
+	}
+
+	/**
+	 * Configures the maximum number of buckets a period is downsampled into.
+	 *
+	 * @param count
+	 *            the maximum number of buckets
+	 */
+	static public void setMaximumPoints(@Nonnegative int count) {
+		points = Math.max(1, count);
+	}
+
+	/**
+	 * Records the start or end of a running period. Called by
+	 * {@link MockVMLifecycle} while holding the monitor of the VM.
+	 *
+	 * @param vm
+	 *            the VM changing state
+	 * @param from
+	 *            the previous state
+	 * @param to
+	 *            the new state
+	 * @param now
+	 *            the time of the transition
+	 */
+	static void transition(@Nonnull MockVM vm, @Nullable VmState from, @Nonnull VmState to, long now) {
+		boolean wasRunning = VmState.RUNNING.equals(from);
+		boolean running = VmState.RUNNING.equals(to);
+		long[] uptime = vm.uptime;
+
+		if (running && !wasRunning) {
+			int length = (uptime == null ? 0 : uptime.length);
+			int drop = (length >= history * 2 ? 2 : 0);
+			long[] updated = new long[length - drop + 2];
+
+			if (uptime != null) {
+				System.arraycopy(uptime, drop, updated, 0, length - drop);
+			}
+			updated[updated.length - 2] = now;
+			updated[updated.length - 1] = Long.MAX_VALUE;
+			vm.uptime = updated;
+		} else if (wasRunning && !running && uptime != null) {
+			long[] updated = uptime.clone();
+
+			updated[updated.length - 1] = now;
+			vm.uptime = updated;
+		}
+	}
+
+	/**
+	 * Summarizes the samples of a VM that fall within a window.
+	 *
+	 * @param vm
+	 *            the VM
+	 * @param from
+	 *            the start of the window, inclusive
+	 * @param to
+	 *            the end of the window, exclusive
+	 * @return the summary
+	 */
+	static @Nonnull VmStatistics summarize(@Nonnull MockVM vm, long from, long to) {
+		return aggregate(seed(vm.vmId), vm.uptime, from, to, interval, MockClock.getInstance().now());
+	}
+
+	/**
+	 * Lazily splits a window into evenly sized buckets and summarizes each of
+	 * them when it is reached.
+	 *
+	 * @param vm
+	 *            the VM
+	 * @param from
+	 *            the start of the window, inclusive
+	 * @param to
+	 *            the end of the window, exclusive
+	 * @return the summaries in chronological order
+	 */
+	static @Nonnull Iterable<VmStatistics> series(@Nonnull MockVM vm, final long from, final long to) {
+		final long seed = seed(vm.vmId);
+		final long[] uptime = vm.uptime;
+		final long step = interval;
+		final long now = MockClock.getInstance().now();
+		long width = Math.max(step, (to - from + points - 1) / points);
+		final long bucket = ((width + step - 1) / step) * step;
+
+		return new Iterable<VmStatistics>() {
+
+			@Override
+			public Iterator<VmStatistics> iterator() {
+				return new AbstractIterator<VmStatistics>() {
+
+					private long start = from;
+
+
+					@Override
+					protected VmStatistics computeNext() {
+						if (start >= to) {
+							return endOfData();
+						}
+						long end = Math.min(to, start + bucket);
+						VmStatistics stats = aggregate(seed, uptime, start, end, step, now);
+
+						start = end;
+						return stats;
+					}
+				};
+			}
+		};
+	}
+
+	static private long seed(@Nonnull String vmId) {
+		// FNV-1a
+		long hash = 0xcbf29ce484222325L;
+
+		for (int i = 0; i < vmId.length(); i++) {
+			hash ^= vmId.charAt(i);
+			hash *= 0x100000001b3L;
+		}
+		return hash;
+	}
+
+	static private long mix(long z) {
+		z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+		z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+		return z ^ (z >>> 31);
+	}
+
+	static private double unit(long seed, long slot, int channel) {
+		long bits = mix(seed + (slot * 0x9e3779b97f4a7c15L) + channel);
+
+		return (bits >>> 11) * (1.0 / (1L << 53));
+	}
+
+	static private @Nonnull VmStatistics aggregate(long seed, @Nullable long[] uptime, long from, long to, long step,
+			long now) {
+		double base = 5.0 + 55.0 * unit(seed, 0L, 0);
+		double amplitude = 5.0 + 20.0 * unit(seed, 0L, 1);
+		double phase = 2.0 * Math.PI * unit(seed, 0L, 2);
+		// peak throughput in bytes per second
+		double diskRate = 1024.0 * (1.0 + 100.0 * unit(seed, 0L, 3));
+		double networkRate = 1024.0 * (1.0 + 50.0 * unit(seed, 0L, 4));
+		double seconds = step / 1000.0;
+		long last = Math.min(to, now);
+		int period = 0;
+		int samples = 0;
+		double cpuTotal = 0.0, cpuMin = 0.0, cpuMax = 0.0;
+		double readTotal = 0.0, writeTotal = 0.0, inTotal = 0.0, outTotal = 0.0;
+		double readMax = 0.0, writeMax = 0.0, inMax = 0.0, outMax = 0.0;
+
+		for (long slot = (from + step - 1) / step; uptime != null && slot * step < last; slot++) {
+			long timestamp = slot * step;
+
+			while (period < uptime.length && uptime[period + 1] <= timestamp) {
+				period += 2;
+			}
+			if (period >= uptime.length) {
+				break;
+			}
+			if (timestamp < uptime[period]) {
+				// skip ahead to the first sample of the next running period
+				slot = (uptime[period] + step - 1) / step - 1;
+				continue;
+			}
+			double day = (double) (timestamp % CalendarWrapper.DAY) / CalendarWrapper.DAY;
+			double cpu = base + amplitude * Math.sin(2.0 * Math.PI * day + phase) + 20.0 * (unit(seed, slot, 0) - 0.5);
+
+			cpu = Math.max(0.0, Math.min(100.0, cpu));
+
+			double load = (cpu / 100.0) * seconds;
+			double read = diskRate * load * (0.5 + unit(seed, slot, 1));
+			double write = diskRate * load * 0.4 * (0.5 + unit(seed, slot, 2));
+			double in = networkRate * load * (0.5 + unit(seed, slot, 3));
+			double out = networkRate * load * 0.6 * (0.5 + unit(seed, slot, 4));
+
+			if (samples == 0) {
+				cpuMin = cpu;
+				cpuMax = cpu;
+			} else {
+				cpuMin = Math.min(cpuMin, cpu);
+				cpuMax = Math.max(cpuMax, cpu);
+			}
+			cpuTotal += cpu;
+			readTotal += read;
+			writeTotal += write;
+			inTotal += in;
+			outTotal += out;
+			readMax = Math.max(readMax, read);
+			writeMax = Math.max(writeMax, write);
+			inMax = Math.max(inMax, in);
+			outMax = Math.max(outMax, out);
+			samples++;
+		}
+		VmStatistics stats = new VmStatistics();
+
+		stats.setStartTimestamp(from);
+		stats.setEndTimestamp(to);
+		stats.setSamples(samples);
+		if (samples > 0) {
+			stats.setAverageCpuUtilization(cpuTotal / samples);
+			stats.setMinimumCpuUtilization(cpuMin);
+			stats.setMaximumCpuUtilization(cpuMax);
+			stats.setAverageDiskReadBytes(readTotal / samples);
+			stats.setMaximumDiskReadBytes(readMax);
+			stats.setTotalDiskReadBytes(readTotal);
+			stats.setAverageDiskWriteBytes(writeTotal / samples);
+			stats.setMaximumDiskWriteBytes(writeMax);
+			stats.setTotalDiskWriteBytes(writeTotal);
+			stats.setAverageNetworkIn(inTotal / samples);
+			stats.setMaximumNetworkIn(inMax);
+			stats.setTotalNetworkIn(inTotal);
+			stats.setAverageNetworkOut(outTotal / samples);
+			stats.setMaximumNetworkOut(outMax);
+			stats.setTotalNetworkOut(outTotal);
+		}
+		return stats;
+	}
+}
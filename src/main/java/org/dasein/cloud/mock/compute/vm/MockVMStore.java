@@ -0,0 +1,600 @@
+/**
+ * Copyright (C) 2009-2012 enStratus Networks Inc.
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.mock.compute.vm;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.dasein.cloud.compute.VmState;
+
+import com.google.common.base.Function;
+
+/**
+ * Holds the mock virtual machines of a single endpoint/region pair. Each shard
+ * keeps a concurrent primary index by VM ID and secondary indexes by state,
+ * owner and tag, the criteria VM filters can name, so lookups are O(1),
+ * filtered queries are answered by index intersection and operations on
+ * different VMs never contend on a shared monitor. VMs are also ordered by the
+ * position at which they were added so they can be listed page by page.
+ */
+class MockVMStore {
+
+	static private final ConcurrentMap<String, ConcurrentMap<String, MockVMStore>> shards =
+			new ConcurrentHashMap<String, ConcurrentMap<String, MockVMStore>>();
+
+
+	static private @Nonnull String key(@Nullable String value) {
+		return (value == null ? "" : value);
+	}
+
+	/**
+	 * Provides the shard for the specified endpoint and region, creating it if
+	 * it does not yet exist.
+	 *
+	 * @param endpoint
+	 *            the cloud endpoint
+	 * @param regionId
+	 *            the region ID
+	 * @return the shard holding all VMs in that region
+	 */
+	static @Nonnull MockVMStore getInstance(@Nullable String endpoint, @Nullable String regionId) {
+		ConcurrentMap<String, MockVMStore> cloud = shards.get(key(endpoint));
+
+		if (cloud == null) {
+			ConcurrentMap<String, MockVMStore> c = new ConcurrentHashMap<String, MockVMStore>();
+
+			cloud = shards.putIfAbsent(key(endpoint), c);
+			if (cloud == null) {
+				cloud = c;
+			}
+		}
+		MockVMStore store = cloud.get(key(regionId));
+
+		if (store == null) {
+			MockVMStore s = new MockVMStore(endpoint, regionId);
+
+			store = cloud.putIfAbsent(key(regionId), s);
+			if (store == null) {
+				store = s;
+			}
+		}
+		return store;
+	}
+
+	/**
+	 * Provides the shard for the specified endpoint and region without creating
+	 * one.
+	 *
+	 * @param endpoint
+	 *            the cloud endpoint
+	 * @param regionId
+	 *            the region ID
+	 * @return the matching shard or <code>null</code> if no VM was ever placed
+	 *         there
+	 */
+	static @Nullable MockVMStore findInstance(@Nullable String endpoint, @Nullable String regionId) {
+		ConcurrentMap<String, MockVMStore> cloud = shards.get(key(endpoint));
+
+		return (cloud == null ? null : cloud.get(key(regionId)));
+	}
+
+	/**
+	 * Forgets every shard of an endpoint. VMs held by those shards are simply
+	 * dropped; nothing else about them is released.
+	 *
+	 * @param endpoint
+	 *            the cloud endpoint
+	 */
+	static void discard(@Nullable String endpoint) {
+		shards.remove(key(endpoint));
+	}
+
+	/**
+	 * Lists every shard across all endpoints and regions.
+	 *
+	 * @return a snapshot of all known shards
+	 */
+	static @Nonnull Collection<MockVMStore> listInstances() {
+		ArrayList<MockVMStore> list = new ArrayList<MockVMStore>();
+
+		for (ConcurrentMap<String, MockVMStore> cloud : shards.values()) {
+			list.addAll(cloud.values());
+		}
+		return list;
+	}
+
+
+	/**
+	 * A concurrent secondary index from a key to the IDs of the VMs carrying
+	 * it.
+	 */
+	static private class Index {
+
+		private final ConcurrentMap<String, Set<String>> entries = new ConcurrentHashMap<String, Set<String>>();
+
+
+		void add(@Nullable String key, @Nonnull String vmId) {
+			if (key != null) {
+				getOrCreate(key).add(vmId);
+			}
+		}
+
+		void addAll(@Nullable String key, @Nonnull Collection<String> vmIds) {
+			if (key != null) {
+				getOrCreate(key).addAll(vmIds);
+			}
+		}
+
+		private @Nonnull Set<String> getOrCreate(@Nonnull String key) {
+			Set<String> ids = entries.get(key);
+
+			if (ids == null) {
+				Set<String> s = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+				ids = entries.putIfAbsent(key, s);
+				if (ids == null) {
+					ids = s;
+				}
+			}
+			return ids;
+		}
+
+		void remove(@Nullable String key, @Nonnull String vmId) {
+			if (key == null) {
+				return;
+			}
+			Set<String> ids = entries.get(key);
+
+			if (ids != null) {
+				ids.remove(vmId);
+			}
+		}
+
+		@Nonnull
+		Set<String> get(@Nullable String key) {
+			Set<String> ids = (key == null ? null : entries.get(key));
+
+			if (ids == null) {
+				return Collections.emptySet();
+			}
+			return ids;
+		}
+	}
+
+
+	static private @Nonnull String tagPair(@Nonnull String key, @Nonnull String value) {
+		return (key + "\0" + value);
+	}
+
+
+	private final String endpoint;
+	private final String regionId;
+	private final ConcurrentMap<String, MockVM> vms = new ConcurrentHashMap<String, MockVM>();
+	private final ConcurrentSkipListMap<Long, MockVM> positions = new ConcurrentSkipListMap<Long, MockVM>();
+	private final AtomicLong nextPosition = new AtomicLong();
+	private final Index states = new Index();
+	private final Index owners = new Index();
+	private final Index tagKeys = new Index();
+	private final Index tagPairs = new Index();
+
+
+	private MockVMStore(@Nullable String endpoint, @Nullable String regionId) {
+		this.endpoint = endpoint;
+		this.regionId = regionId;
+	}
+
+	public @Nullable String getEndpoint() {
+		return endpoint;
+	}
+
+	public @Nullable String getRegionId() {
+		return regionId;
+	}
+
+	private void index(@Nonnull MockVM vm) {
+		states.add(vm.currentState.name(), vm.vmId);
+		owners.add(vm.owner, vm.vmId);
+		indexTags(vm.vmId, vm.tags);
+	}
+
+	private void unindex(@Nonnull MockVM vm) {
+		states.remove(vm.currentState.name(), vm.vmId);
+		owners.remove(vm.owner, vm.vmId);
+		unindexTags(vm.vmId, vm.tags);
+	}
+
+	private void indexTags(@Nonnull String vmId, @Nonnull Map<String, String> tags) {
+		for (Map.Entry<String, String> tag : tags.entrySet()) {
+			tagKeys.add(tag.getKey(), vmId);
+			if (tag.getValue() != null) {
+				tagPairs.add(tagPair(tag.getKey(), tag.getValue()), vmId);
+			}
+		}
+	}
+
+	private void unindexTags(@Nonnull String vmId, @Nonnull Map<String, String> tags) {
+		for (Map.Entry<String, String> tag : tags.entrySet()) {
+			tagKeys.remove(tag.getKey(), vmId);
+			if (tag.getValue() != null) {
+				tagPairs.remove(tagPair(tag.getKey(), tag.getValue()), vmId);
+			}
+		}
+	}
+
+	/**
+	 * Adds a newly launched VM to this shard.
+	 *
+	 * @param vm
+	 *            the VM to add
+	 */
+	public void add(@Nonnull MockVM vm) {
+		synchronized (vm) {
+			vm.store = this;
+			vm.position = nextPosition.getAndIncrement();
+			index(vm);
+		}
+		vms.put(vm.vmId, vm);
+		positions.put(vm.position, vm);
+	}
+
+	/**
+	 * Adds a batch of VMs to this shard. The IDs of the batch are grouped by
+	 * index key so that each index entry is updated once per batch rather
+	 * than once per VM, positions are reserved as one block and the VMs are
+	 * published only once they are fully indexed.
+	 * <p>
+	 * The VMs are not attached to this shard until after the state index was
+	 * updated, so transitions that fire in the meantime leave the index alone
+	 * and are reconciled as each VM is attached.
+	 * </p>
+	 *
+	 * @param batch
+	 *            the VMs to add
+	 */
+	public void addAll(@Nonnull Collection<MockVM> batch) {
+		int count = batch.size();
+
+		if (count == 0) {
+			return;
+		}
+		MockVM[] added = batch.toArray(new MockVM[count]);
+		VmState[] indexed = new VmState[count];
+		HashMap<String, List<String>> byState = new HashMap<String, List<String>>();
+		HashMap<String, List<String>> byOwner = new HashMap<String, List<String>>();
+		HashMap<String, List<String>> byTagKey = new HashMap<String, List<String>>();
+		HashMap<String, List<String>> byTagPair = new HashMap<String, List<String>>();
+
+		for (int i = 0; i < count; i++) {
+			MockVM vm = added[i];
+
+			synchronized (vm) {
+				indexed[i] = vm.currentState;
+			}
+			group(byState, indexed[i].name(), vm.vmId);
+			group(byOwner, vm.owner, vm.vmId);
+			for (Map.Entry<String, String> tag : vm.tags.entrySet()) {
+				group(byTagKey, tag.getKey(), vm.vmId);
+				if (tag.getValue() != null) {
+					group(byTagPair, tagPair(tag.getKey(), tag.getValue()), vm.vmId);
+				}
+			}
+		}
+		addAll(states, byState);
+		addAll(owners, byOwner);
+		addAll(tagKeys, byTagKey);
+		addAll(tagPairs, byTagPair);
+
+		long first = nextPosition.getAndAdd(count);
+		HashMap<String, MockVM> ids = new HashMap<String, MockVM>(count * 2);
+
+		for (int i = 0; i < count; i++) {
+			MockVM vm = added[i];
+
+			synchronized (vm) {
+				if (vm.currentState != indexed[i]) {
+					stateChanged(vm, indexed[i], vm.currentState);
+				}
+				vm.store = this;
+				vm.position = first + i;
+			}
+			ids.put(vm.vmId, vm);
+		}
+		vms.putAll(ids);
+		for (MockVM vm : added) {
+			positions.put(vm.position, vm);
+		}
+	}
+
+	static private void group(@Nonnull Map<String, List<String>> groups, @Nullable String key, @Nonnull String vmId) {
+		if (key == null) {
+			return;
+		}
+		List<String> ids = groups.get(key);
+
+		if (ids == null) {
+			ids = new ArrayList<String>();
+			groups.put(key, ids);
+		}
+		ids.add(vmId);
+	}
+
+	static private void addAll(@Nonnull Index index, @Nonnull Map<String, List<String>> groups) {
+		for (Map.Entry<String, List<String>> group : groups.entrySet()) {
+			index.addAll(group.getKey(), group.getValue());
+		}
+	}
+
+	/**
+	 * Moves a VM between entries of the state index. Called by
+	 * {@link MockVMLifecycle} while holding the monitor of the VM.
+	 *
+	 * @param vm
+	 *            the VM that changed state
+	 * @param from
+	 *            the previous state
+	 * @param to
+	 *            the new state
+	 */
+	void stateChanged(@Nonnull MockVM vm, @Nullable VmState from, @Nonnull VmState to) {
+		if (from != null) {
+			states.remove(from.name(), vm.vmId);
+		}
+		states.add(to.name(), vm.vmId);
+	}
+
+	/**
+	 * Replaces the tags of a batch of VMs in one pass, moving each VM only
+	 * between the tag index entries whose key or value actually changed. VMs
+	 * that no longer belong to this shard are skipped.
+	 *
+	 * @param batch
+	 *            the VMs to retag
+	 * @param change
+	 *            computes the new tags of a VM from its current tags
+	 * @return the number of VMs whose tags changed
+	 */
+	public int retag(@Nonnull Iterable<MockVM> batch,
+			@Nonnull Function<Map<String, String>, Map<String, String>> change) {
+		int count = 0;
+
+		for (MockVM vm : batch) {
+			synchronized (vm) {
+				if (vm.store != this) {
+					continue;
+				}
+				Map<String, String> previous = vm.tags;
+				Map<String, String> tags = change.apply(previous);
+
+				if (tags == null || tags.equals(previous)) {
+					continue;
+				}
+				for (Map.Entry<String, String> tag : previous.entrySet()) {
+					String value = tag.getValue();
+
+					if (!tags.containsKey(tag.getKey())) {
+						tagKeys.remove(tag.getKey(), vm.vmId);
+					}
+					if (value != null && !value.equals(tags.get(tag.getKey()))) {
+						tagPairs.remove(tagPair(tag.getKey(), value), vm.vmId);
+					}
+				}
+				for (Map.Entry<String, String> tag : tags.entrySet()) {
+					String value = tag.getValue();
+
+					if (!previous.containsKey(tag.getKey())) {
+						tagKeys.add(tag.getKey(), vm.vmId);
+					}
+					if (value != null && !value.equals(previous.get(tag.getKey()))) {
+						tagPairs.add(tagPair(tag.getKey(), value), vm.vmId);
+					}
+				}
+				vm.tags = Collections.unmodifiableMap(tags);
+				vm.version++;
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Looks up a VM by its ID.
+	 *
+	 * @param vmId
+	 *            the VM ID
+	 * @return the matching VM or <code>null</code>
+	 */
+	public @Nullable MockVM get(@Nonnull String vmId) {
+		return vms.get(vmId);
+	}
+
+	/**
+	 * Removes a VM from this shard.
+	 *
+	 * @param vmId
+	 *            the VM ID
+	 * @return the removed VM or <code>null</code> if it was not present
+	 */
+	public @Nullable MockVM remove(@Nonnull String vmId) {
+		MockVM vm = vms.remove(vmId);
+
+		if (vm != null) {
+			positions.remove(vm.position);
+			synchronized (vm) {
+				MockVMLifecycle.cancel(vm);
+				unindex(vm);
+				vm.store = null;
+			}
+		}
+		return vm;
+	}
+
+	/**
+	 * @return a weakly consistent view of every VM in this shard
+	 */
+	public @Nonnull Collection<MockVM> list() {
+		return Collections.unmodifiableCollection(vms.values());
+	}
+
+	/**
+	 * Lists VMs in the order they were added to this shard, starting after a
+	 * given position.
+	 *
+	 * @param after
+	 *            the position of the last VM already seen or -1 to start from
+	 *            the beginning
+	 * @param limit
+	 *            the maximum number of VMs to return
+	 * @return the next VMs in launch order
+	 */
+	public @Nonnull List<MockVM> page(long after, int limit) {
+		ArrayList<MockVM> page = new ArrayList<MockVM>(Math.min(limit, 1024));
+
+		for (MockVM vm : positions.tailMap(after, false).values()) {
+			if (page.size() >= limit) {
+				break;
+			}
+			page.add(vm);
+		}
+		return page;
+	}
+
+	/**
+	 * Selects VMs by intersecting (or, for {@link MockVMQuery#matchingAny()},
+	 * uniting) the secondary indexes named by the query. The name pattern is
+	 * evaluated only over the reduced candidate set.
+	 *
+	 * @param query
+	 *            the selection criteria
+	 * @return the matching VMs
+	 */
+	public @Nonnull Collection<MockVM> select(@Nonnull MockVMQuery query) {
+		ArrayList<Set<String>> criteria = new ArrayList<Set<String>>();
+		Collection<VmState> wanted = query.getStates();
+
+		if (wanted != null) {
+			if (wanted.size() == 1) {
+				criteria.add(states.get(wanted.iterator().next().name()));
+			} else {
+				HashSet<String> ids = new HashSet<String>();
+
+				for (VmState state : wanted) {
+					ids.addAll(states.get(state.name()));
+				}
+				criteria.add(ids);
+			}
+		}
+		if (query.getTags() != null) {
+			for (Map.Entry<String, String> tag : query.getTags().entrySet()) {
+				if (tag.getValue() == null) {
+					criteria.add(tagKeys.get(tag.getKey()));
+				} else {
+					criteria.add(tagPairs.get(tagPair(tag.getKey(), tag.getValue())));
+				}
+			}
+		}
+		Set<String> owned = (query.getOwner() == null ? null : owners.get(query.getOwner()));
+		ArrayList<MockVM> matches = new ArrayList<MockVM>();
+
+		if (query.isMatchesAny() && query.hasCriteria()) {
+			Collection<String> candidates;
+
+			if (query.getPattern() != null) {
+				candidates = (owned == null ? vms.keySet() : owned);
+			} else {
+				HashSet<String> ids = new HashSet<String>();
+
+				for (Set<String> c : criteria) {
+					ids.addAll(c);
+				}
+				candidates = ids;
+			}
+			for (String vmId : candidates) {
+				MockVM vm = vms.get(vmId);
+
+				if (vm == null || (owned != null && !owned.contains(vmId))) {
+					continue;
+				}
+				boolean any = (query.getPattern() != null && query.matchesPattern(vm));
+
+				for (int i = 0; !any && i < criteria.size(); i++) {
+					any = criteria.get(i).contains(vmId);
+				}
+				if (any) {
+					matches.add(vm);
+				}
+			}
+			return matches;
+		}
+		if (owned != null) {
+			criteria.add(owned);
+		}
+		Collection<String> candidates;
+
+		if (criteria.isEmpty()) {
+			candidates = vms.keySet();
+		} else {
+			Collections.sort(criteria, new Comparator<Set<String>>() {
+
+				@Override
+				public int compare(Set<String> a, Set<String> b) {
+					return (a.size() < b.size() ? -1 : (a.size() == b.size() ? 0 : 1));
+				}
+			});
+			candidates = criteria.get(0);
+		}
+		for (String vmId : candidates) {
+			boolean all = true;
+
+			for (int i = 1; all && i < criteria.size(); i++) {
+				all = criteria.get(i).contains(vmId);
+			}
+			if (!all) {
+				continue;
+			}
+			MockVM vm = vms.get(vmId);
+
+			if (vm == null || (wanted != null && !wanted.contains(vm.currentState)) || !query.matchesPattern(vm)) {
+				continue;
+			}
+			matches.add(vm);
+		}
+		return matches;
+	}
+
+	/**
+	 * @return the number of VMs in this shard
+	 */
+	public int size() {
+		return vms.size();
+	}
+}
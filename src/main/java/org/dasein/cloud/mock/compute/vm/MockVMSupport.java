@@ -19,13 +19,14 @@
 package org.dasein.cloud.mock.compute.vm;
 
 import java.util.ArrayList;
-import java.util.Collection;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
-import java.util.Random;
+import java.util.Set;
 
 import javax.annotation.Nonnegative;
 import javax.annotation.Nonnull;
@@ -40,12 +41,11 @@ import org.dasein.cloud.Requirement;
 import org.dasein.cloud.ResourceStatus;
 import org.dasein.cloud.Tag;
 import org.dasein.cloud.compute.Architecture;
-import org.dasein.cloud.compute.ComputeServices;
 import org.dasein.cloud.compute.ImageClass;
 import org.dasein.cloud.compute.MachineImage;
 import org.dasein.cloud.compute.MachineImageState;
-import org.dasein.cloud.compute.MachineImageSupport;
 import org.dasein.cloud.compute.Platform;
+import org.dasein.cloud.compute.SpotPrice;
 import org.dasein.cloud.compute.SpotPriceHistory;
 import org.dasein.cloud.compute.SpotPriceHistoryFilterOptions;
 import org.dasein.cloud.compute.SpotVirtualMachineRequest;
@@ -63,9 +63,14 @@ import org.dasein.cloud.compute.VirtualMachineStatus;
 import org.dasein.cloud.compute.VirtualMachineSupport;
 import org.dasein.cloud.compute.VmState;
 import org.dasein.cloud.compute.VmStatistics;
+import org.dasein.cloud.compute.VmStatus;
 import org.dasein.cloud.compute.VmStatusFilterOptions;
 import org.dasein.cloud.dc.DataCenter;
 import org.dasein.cloud.identity.ServiceAction;
+import org.dasein.cloud.mock.MockClock;
+import org.dasein.cloud.mock.MockIdAllocator;
+import org.dasein.cloud.mock.compute.image.MockImageSupport;
+import org.dasein.cloud.mock.compute.vm.MockVMTransitions.Operation;
 import org.dasein.cloud.mock.network.firewall.MockFirewallSupport;
 import org.dasein.cloud.mock.network.ip.MockIPSupport;
 import org.dasein.cloud.network.NetworkServices;
@@ -74,8 +79,14 @@ import org.dasein.cloud.network.Subnet;
 import org.dasein.cloud.network.VLAN;
 import org.dasein.cloud.network.VLANSupport;
 import org.dasein.util.CalendarWrapper;
-import org.dasein.util.uom.storage.Gigabyte;
 import org.dasein.util.uom.storage.Storage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Function;
+import com.google.common.base.Predicate;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.Iterables;
 
 /**
  * Implements mock virtual machine features.
@@ -89,184 +100,45 @@ import org.dasein.util.uom.storage.Storage;
  */
 public class MockVMSupport implements VirtualMachineSupport {
 
-	static private class MockVM {
-
-		public String vmId;
-		public String name;
-		public String description;
-		public VmState currentState;
-		public long created;
-		public String imageId;
-		public long lastBoot;
-		public long lastPaused;
-		public long lastTouched;
-		public Platform platform;
-		public String owner;
-		public String privateIpAddress;
-		public String publicIpAddress;
-		public String productId;
-		public String vlanId;
-		public String subnetId;
-		public String rootUser;
-		public String rootPassword;
-		// public String shellKey;
-	}
-
-
-	static private final HashMap<String, Map<String, Map<String, Collection<MockVM>>>> mockList =
-			new HashMap<String, Map<String, Map<String, Collection<MockVM>>>>();
-	static private Thread monitor;
-	static private long nextId = 1;
-	static private int quad1 = 10;
-	static private int quad2 = 0;
-	static private int quad3 = 0;
-	static private int quad4 = 0;
+	static private final Logger logger = LoggerFactory.getLogger(MockVMSupport.class);
+
+	static private final MockIdAllocator idAllocator = MockIdAllocator.getInstance("vm");
+	static private final int LIST_CHUNK_SIZE = 500;
 
 
 	static public String[] getNextIpPair() throws CloudException {
-		synchronized (mockList) {
-			quad4++;
-			if (quad4 > 253) {
-				quad4 = 1;
-				quad3++;
-				if (quad3 > 253) {
-					quad3 = 0;
-					if (quad1 == 10) {
-						quad2++;
-						if (quad2 > 253) {
-							quad1 = 192;
-							quad2 = 168;
-						}
-					} else if (quad1 == 192) {
-						quad1 = 172;
-						quad2 = 16;
-					} else if (quad1 == 172) {
-						quad2++;
-						if (quad2 > 31) {
-							throw new CloudException("Unable to allocate an IP address");
-						}
-					}
-				}
-			}
-			return new String[] { quad1 + "." + quad2 + "." + quad3 + "." + quad4,
-					(15 + quad1) + "." + quad2 + "." + quad3 + "." + quad4 };
-		}
+		return MockIPPool.allocate();
+	}
+
+	/**
+	 * Reserves a block of private/public address pairs in a single step.
+	 *
+	 * @param count
+	 *            the number of pairs to reserve
+	 * @return the reserved pairs
+	 * @throws CloudException
+	 *             the address space was exhausted
+	 */
+	static public String[][] getNextIpPairs(int count) throws CloudException {
+		return MockIPPool.allocate(count);
 	}
 
 	static private @Nonnull String getNextId(@Nonnull String regionId) {
-		synchronized (mockList) {
-			return (regionId + "-" + (nextId++));
-		}
+		return (regionId + "-" + idAllocator.next(regionId));
 	}
 
 	@SuppressWarnings("deprecation")
 	static private @Nullable MockVM getMockVM(@Nonnull ProviderContext ctx, @Nonnull String vmId) {
-		String endpoint = ctx.getEndpoint();
-		String regionId = ctx.getRegionId();
-
-		synchronized (mockList) {
-			Map<String, Map<String, Collection<MockVM>>> cloud = mockList.get(endpoint);
-
-			if (cloud != null) {
-				Map<String, Collection<MockVM>> region = cloud.get(regionId);
+		MockVMStore store = MockVMStore.findInstance(ctx.getEndpoint(), ctx.getRegionId());
 
-				if (region != null) {
-					for (Map.Entry<String, Collection<MockVM>> entry : region.entrySet()) {
-						for (MockVM vm : entry.getValue()) {
-							if (vm.vmId.equals(vmId)) {
-								return vm;
-							}
-						}
-					}
-				}
-			}
-		}
-		return null;
+		return (store == null ? null : store.get(vmId));
 	}
 
-	static private void checkMonitor() {
-		synchronized (mockList) {
-			if (monitor == null) {
-				monitor = new Thread() {
-
-					@Override
-					public void run() {
-						monitor();
-					}
-				};
-				monitor.setDaemon(true);
-				monitor.setName("VM Monitor");
-				monitor.start();
-			}
-		}
-	}
-
-
-	static private final Random random = new Random();
-
-
-	@SuppressWarnings("incomplete-switch")
-	static private void monitor() {
-		// noinspection InfiniteLoopStatement
-		while (true) {
-			try {
-				Thread.sleep(15000L);
-			} catch (InterruptedException ignore) {
-			}
-			synchronized (mockList) {
-				for (Map.Entry<String, Map<String, Map<String, Collection<MockVM>>>> clouds : mockList.entrySet()) {
-					for (Map.Entry<String, Map<String, Collection<MockVM>>> regions : clouds.getValue().entrySet()) {
-						for (Map.Entry<String, Collection<MockVM>> dcs : regions.getValue().entrySet()) {
-							for (MockVM vm : dcs.getValue()) {
-								switch (vm.currentState) {
-								case RUNNING:
-									if (random.nextInt(5760) == 5) {
-										// whoops, crashed
-										vm.currentState = VmState.TERMINATED;
-										MockFirewallSupport.vmTerminated(vm.vmId);
-									}
-									break;
-								case PENDING:
-									if (random.nextInt(10) == 5) {
-										vm.currentState = VmState.RUNNING;
-									}
-									break;
-								case PAUSING:
-									if (random.nextInt(10) == 5) {
-										vm.currentState = VmState.PAUSED;
-									}
-									break;
-								case SUSPENDING:
-									if (random.nextInt(10) == 5) {
-										vm.currentState = VmState.SUSPENDED;
-									}
-									break;
-								case STOPPING:
-									if (random.nextInt(10) == 5) {
-										vm.currentState = VmState.STOPPED;
-									}
-									break;
-								case REBOOTING:
-									if (random.nextInt(10) == 5) {
-										vm.currentState = VmState.PENDING;
-									}
-									break;
-								}
-							}
-						}
-					}
-				}
-			}
-		}
-	}
-
-
 	private CloudProvider provider;
 
 
 	public MockVMSupport(CloudProvider provider) {
 		this.provider = provider;
-		checkMonitor();
 	}
 
 	@Override
@@ -279,7 +151,79 @@ public class MockVMSupport implements VirtualMachineSupport {
 	public @Nonnull VirtualMachine clone(@Nonnull String vmId, @Nonnull String intoDcId, @Nonnull String name,
 			@Nonnull String description, boolean powerOn, @Nullable String... firewallIds) throws InternalException,
 			CloudException {
-		throw new OperationNotSupportedException("No ability to clone in the mock cloud");
+		ProviderContext ctx = provider.getContext();
+
+		if (ctx == null) {
+			throw new CloudException("No context was provided for this request");
+		}
+		String regionId = ctx.getRegionId();
+
+		if (regionId == null) {
+			throw new CloudException("No region was provided for this request");
+		}
+		MockVM source = getMockVM(ctx, vmId);
+
+		if (!isVisible(source, ctx.getAccountNumber(), MockClock.getInstance().now())) {
+			throw new CloudException("No such VM: " + vmId);
+		}
+		if (VmState.TERMINATED.equals(source.currentState)) {
+			throw new CloudException("Unable to clone a terminated VM: " + vmId);
+		}
+		DataCenter dc = provider.getDataCenterServices().getDataCenter(intoDcId);
+
+		if (dc == null || !regionId.equals(dc.getRegionId())) {
+			throw new CloudException("No such data center: " + intoDcId);
+		}
+		if (!dc.isActive() || !dc.isAvailable()) {
+			throw new CloudException("Data center " + intoDcId + " is not available");
+		}
+		MockVM template = new MockVM();
+
+		// everything but the identity is immutable and shared with the source
+		template.name = name;
+		template.description = description;
+		template.owner = source.owner;
+		template.rootUser = source.rootUser;
+		template.rootPassword = source.rootPassword;
+		template.productId = source.productId;
+		template.cpuCount = source.cpuCount;
+		template.ramSize = source.ramSize;
+		template.vlanId = source.vlanId;
+		template.subnetId = source.subnetId;
+		template.imageId = source.imageId;
+		template.platform = source.platform;
+		template.tags = source.tags;
+		template.userData = source.userData;
+		template.zone = MockPlacement.reserve(ctx.getEndpoint(), regionId, intoDcId, Collections.<String> emptyList(),
+				template.cpuCount, template.ramSize, 1);
+		template.dataCenterId = template.zone.getDataCenterId();
+
+		String[] ips = null;
+		MockVM newVm;
+		boolean cloned = false;
+
+		try {
+			ips = (template.vlanId == null ? getNextIpPair() : null);
+			newVm = instantiate(template, getNextId(regionId), ips, MockClock.getInstance().now());
+			if (firewallIds != null && firewallIds.length > 0) {
+				MockFirewallSupport.saveFirewallsForVM(provider, newVm.vmId, firewallIds);
+			} else {
+				MockFirewallSupport.shareFirewalls(source.vmId, newVm.vmId);
+			}
+			cloned = true;
+		} finally {
+			if (!cloned) {
+				abandon(template, (ips == null ? null : new String[][] { ips }), 1);
+			}
+		}
+		MockVMLifecycle.enter(newVm, (powerOn ? VmState.PENDING : VmState.STOPPED));
+		MockVMStore.getInstance(ctx.getEndpoint(), regionId).add(newVm);
+		VirtualMachine vm = toVM(newVm);
+
+		if (vm == null) {
+			throw new CloudException("VM clone failed without comment");
+		}
+		return vm;
 	}
 
 	@Override
@@ -299,7 +243,12 @@ public class MockVMSupport implements VirtualMachineSupport {
 
 	@Override
 	public @Nonnull String getConsoleOutput(@Nonnull String vmId) throws InternalException, CloudException {
-		return "";
+		MockVM mock = getVisibleMockVM(vmId);
+
+		if (mock == null) {
+			throw new CloudException("No such VM: " + vmId);
+		}
+		return MockConsole.read(mock);
 	}
 
 	@Override
@@ -314,14 +263,7 @@ public class MockVMSupport implements VirtualMachineSupport {
 
 	@Override
 	public @Nullable VirtualMachineProduct getProduct(@Nonnull String productId) throws InternalException, CloudException {
-		for (Architecture architecture : listSupportedArchitectures()) {
-			for (VirtualMachineProduct prd : listProducts(architecture)) {
-				if (productId.equals(prd.getProviderProductId())) {
-					return prd;
-				}
-			}
-		}
-		return null;
+		return MockProductCatalog.getInstance().get(productId);
 	}
 
 	@Override
@@ -331,23 +273,43 @@ public class MockVMSupport implements VirtualMachineSupport {
 
 	@Override
 	public @Nullable VirtualMachine getVirtualMachine(@Nonnull String vmId) throws InternalException, CloudException {
-		for (VirtualMachine vm : listVirtualMachines()) {
-			if (vmId.equals(vm.getProviderVirtualMachineId())) {
-				return vm;
-			}
+		ProviderContext ctx = provider.getContext();
+
+		if (ctx == null) {
+			throw new CloudException("No context was set for this request");
 		}
-		return null;
+		MockVM mock = getMockVM(ctx, vmId);
+
+		return (mock == null ? null : toVM(mock));
 	}
 
 	@Override
 	public VmStatistics getVMStatistics(String vmId, long from, long to) throws InternalException, CloudException {
-		return null;
+		MockVM mock = getVisibleMockVM(vmId);
+
+		return (mock == null ? null : MockVMStatistics.summarize(mock, from, to));
 	}
 
 	@Override
 	public @Nonnull Iterable<VmStatistics> getVMStatisticsForPeriod(@Nonnull String vmId, @Nonnegative long from,
 			@Nonnegative long to) throws InternalException, CloudException {
-		return Collections.emptyList();
+		MockVM mock = getVisibleMockVM(vmId);
+
+		if (mock == null) {
+			return Collections.emptyList();
+		}
+		return MockVMStatistics.series(mock, from, to);
+	}
+
+	private @Nullable MockVM getVisibleMockVM(@Nonnull String vmId) throws CloudException {
+		ProviderContext ctx = provider.getContext();
+
+		if (ctx == null) {
+			throw new CloudException("No context was set for this request");
+		}
+		MockVM mock = getMockVM(ctx, vmId);
+
+		return (isVisible(mock, ctx.getAccountNumber(), MockClock.getInstance().now()) ? mock : null);
 	}
 
 	@Override
@@ -437,30 +399,80 @@ public class MockVMSupport implements VirtualMachineSupport {
 		if (regionId == null) {
 			throw new CloudException("No region was provided for this request");
 		}
+		MockVM template = prepare(ctx, regionId, withLaunchOptions, 1);
+		String[] ips = null;
+		MockVM newVm;
+		boolean launched = false;
+
+		try {
+			ips = (template.vlanId == null ? getNextIpPair() : null);
+			newVm = instantiate(template, getNextId(regionId), ips, MockClock.getInstance().now());
+
+			String[] firewalls = withLaunchOptions.getFirewallIds();
+
+			if (firewalls.length > 0) {
+				MockFirewallSupport.saveFirewallsForVM(provider, newVm.vmId, firewalls);
+			}
+			launched = true;
+		} finally {
+			if (!launched) {
+				abandon(template, (ips == null ? null : new String[][] { ips }), 1);
+			}
+		}
+		MockVMLifecycle.enter(newVm, VmState.PENDING);
+		MockVMStore.getInstance(ctx.getEndpoint(), regionId).add(newVm);
+		VirtualMachine vm = toVM(newVm);
+
+		if (vm == null) {
+			throw new CloudException("VM launch failed without comment");
+		}
+		return vm;
+	}
+
+	/**
+	 * Validates launch options once and resolves them into a template VM
+	 * carrying everything except its identity, addresses and timestamps. As a
+	 * last step, capacity for all of the VMs is reserved in the data center
+	 * chosen by the {@link MockPlacement} policy; it must be handed back with
+	 * {@link #abandon(MockVM, String[][], int)} if the launch fails later on.
+	 *
+	 * @param ctx
+	 *            the context of the request
+	 * @param regionId
+	 *            the region into which the VMs will be launched
+	 * @param withLaunchOptions
+	 *            the options to validate
+	 * @param count
+	 *            the number of VMs that will be launched from the template
+	 * @return a template for the VMs to be launched
+	 * @throws CloudException
+	 *             the options are invalid for this cloud or no data center has
+	 *             room for the VMs
+	 * @throws InternalException
+	 *             an error occurred resolving the options
+	 */
+	@SuppressWarnings("deprecation")
+	private @Nonnull MockVM prepare(@Nonnull ProviderContext ctx, @Nonnull String regionId,
+			@Nonnull VMLaunchOptions withLaunchOptions, @Nonnegative int count) throws CloudException,
+			InternalException {
 		String dcId = withLaunchOptions.getDataCenterId();
+		ArrayList<String> candidates = new ArrayList<String>();
 
 		if (dcId == null) {
 			for (DataCenter dc : provider.getDataCenterServices().listDataCenters(regionId)) {
 				if (dc.isActive() && dc.isAvailable()) {
-					dcId = dc.getProviderDataCenterId();
-					break;
+					candidates.add(dc.getProviderDataCenterId());
 				}
 			}
-		}
-		if (dcId == null) {
-			throw new CloudException("Unable to identify an available data center into which a VM may be launched");
+			if (candidates.isEmpty()) {
+				throw new CloudException("Unable to identify an available data center into which a VM may be launched");
+			}
 		}
 		MockVM newVm = new MockVM();
 
-		newVm.vmId = getNextId(regionId);
 		newVm.name = withLaunchOptions.getHostName();
 		newVm.description = withLaunchOptions.getDescription();
-		newVm.lastBoot = -1L;
-		newVm.lastPaused = -1L;
-		newVm.lastTouched = System.currentTimeMillis();
-		newVm.created = newVm.lastTouched;
 		newVm.owner = ctx.getAccountNumber();
-		newVm.currentState = VmState.PENDING;
 
 		if (!Requirement.NONE.equals(identifyPasswordRequirement())) {
 			if (Requirement.REQUIRED.equals(identifyPasswordRequirement())) {
@@ -484,6 +496,8 @@ public class MockVMSupport implements VirtualMachineSupport {
 			throw new CloudException("No such VM product: " + withLaunchOptions.getStandardProductId());
 		}
 		newVm.productId = prd.getProviderProductId();
+		newVm.cpuCount = prd.getCpuCount();
+		newVm.ramSize = prd.getRamSize().convertTo(Storage.MEGABYTE).getQuantity().longValue();
 
 		String vlanId = withLaunchOptions.getVlanId();
 
@@ -528,23 +542,10 @@ public class MockVMSupport implements VirtualMachineSupport {
 					newVm.vlanId = subnet.getProviderVlanId();
 				}
 			}
-		} else {
-			String[] ips = getNextIpPair();
-
-			newVm.privateIpAddress = ips[0];
-			newVm.publicIpAddress = ips[1];
-		}
-		String[] firewalls = withLaunchOptions.getFirewallIds();
-
-		if (firewalls.length > 0) {
-			MockFirewallSupport.saveFirewallsForVM(provider, newVm.vmId, firewalls);
 		}
 
 		String imageId = withLaunchOptions.getMachineImageId();
-
-		ComputeServices services = provider.getComputeServices();
-		MachineImageSupport support = services.getImageSupport();
-		MachineImage image = support.getImage(imageId);
+		MachineImage image = MockImageSupport.findImage(ctx, imageId);
 
 		if (image == null) {
 			throw new CloudException("No such machine image: " + imageId);
@@ -554,34 +555,91 @@ public class MockVMSupport implements VirtualMachineSupport {
 		}
 		newVm.imageId = imageId;
 		newVm.platform = image.getPlatform();
+		newVm.userData = MockUserData.getInstance(withLaunchOptions.getUserData());
 
-		synchronized (mockList) {
-			Map<String, Map<String, Collection<MockVM>>> cloud = mockList.get(ctx.getEndpoint());
+		Map<String, Object> meta = withLaunchOptions.getMetaData();
 
-			if (cloud == null) {
-				cloud = new HashMap<String, Map<String, Collection<MockVM>>>();
-				mockList.put(ctx.getEndpoint(), cloud);
-			}
-			Map<String, Collection<MockVM>> region = cloud.get(regionId);
+		if (meta != null && !meta.isEmpty()) {
+			HashMap<String, String> tags = new HashMap<String, String>();
 
-			if (region == null) {
-				region = new HashMap<String, Collection<MockVM>>();
-				cloud.put(regionId, region);
+			for (Map.Entry<String, Object> entry : meta.entrySet()) {
+				if (entry.getValue() != null) {
+					tags.put(entry.getKey(), entry.getValue().toString());
+				}
 			}
-			Collection<MockVM> list = region.get(dcId);
-
-			if (list == null) {
-				list = new ArrayList<MockVM>();
-				region.put(dcId, list);
+			newVm.tags = Collections.unmodifiableMap(tags);
+		}
+		newVm.zone = MockPlacement.reserve(ctx.getEndpoint(), regionId, dcId, candidates, newVm.cpuCount, newVm.ramSize,
+				count);
+		newVm.dataCenterId = newVm.zone.getDataCenterId();
+		return newVm;
+	}
+
+	/**
+	 * Hands back the capacity and addresses reserved for a launch that failed.
+	 *
+	 * @param template
+	 *            the template returned by
+	 *            {@link #prepare(ProviderContext, String, VMLaunchOptions, int)}
+	 * @param ips
+	 *            the address pairs allocated for the launch, if any
+	 * @param count
+	 *            the number of VMs in the launch
+	 */
+	static private void abandon(@Nonnull MockVM template, @Nullable String[][] ips, @Nonnegative int count) {
+		MockPlacement.release(template.zone, template.cpuCount, template.ramSize, count);
+		if (ips != null) {
+			for (String[] pair : ips) {
+				MockIPPool.release(pair[0]);
 			}
-			list.add(newVm);
 		}
-		VirtualMachine vm = toVM(dcId, newVm);
+	}
 
-		if (vm == null) {
-			throw new CloudException("VM launch failed without comment");
+	/**
+	 * Creates a new, not yet published VM from a template built by
+	 * {@link #prepare(ProviderContext, String, VMLaunchOptions, int)}.
+	 *
+	 * @param template
+	 *            the validated template
+	 * @param vmId
+	 *            the ID of the new VM
+	 * @param ips
+	 *            the private/public address pair or <code>null</code> for VMs
+	 *            in a VLAN
+	 * @param now
+	 *            the launch timestamp
+	 * @return the new VM
+	 */
+	static private @Nonnull MockVM instantiate(@Nonnull MockVM template, @Nonnull String vmId, @Nullable String[] ips,
+			long now) {
+		MockVM newVm = new MockVM();
+
+		newVm.vmId = vmId;
+		newVm.dataCenterId = template.dataCenterId;
+		newVm.zone = template.zone;
+		newVm.name = template.name;
+		newVm.description = template.description;
+		newVm.lastBoot = -1L;
+		newVm.lastPaused = -1L;
+		newVm.lastTouched = now;
+		newVm.created = now;
+		newVm.owner = template.owner;
+		newVm.rootUser = template.rootUser;
+		newVm.rootPassword = template.rootPassword;
+		newVm.productId = template.productId;
+		newVm.cpuCount = template.cpuCount;
+		newVm.ramSize = template.ramSize;
+		newVm.vlanId = template.vlanId;
+		newVm.subnetId = template.subnetId;
+		newVm.imageId = template.imageId;
+		newVm.platform = template.platform;
+		newVm.tags = template.tags;
+		newVm.userData = template.userData;
+		if (ips != null) {
+			newVm.privateIpAddress = ips[0];
+			newVm.publicIpAddress = ips[1];
 		}
-		return vm;
+		return newVm;
 	}
 
 	@SuppressWarnings("deprecation")
@@ -686,114 +744,234 @@ public class MockVMSupport implements VirtualMachineSupport {
 	}
 
 
-	private transient Collection<VirtualMachineProduct> products;
-
-
 	public @Nonnull Iterable<VirtualMachineProduct> listProducts(Architecture architecture) throws InternalException,
 			CloudException {
-		if (!architecture.equals(Architecture.I64)) {
-			return Collections.emptyList();
-		}
-		if (products == null) {
-			ArrayList<VirtualMachineProduct> list = new ArrayList<VirtualMachineProduct>();
-
-			VirtualMachineProduct p;
-
-			p = new VirtualMachineProduct();
-			p.setDescription("1 GB RAM/1 CPU/20 GB Disk");
-			p.setName("Small");
-			p.setCpuCount(1);
-			p.setProviderProductId("small");
-			p.setRamSize(new Storage<Gigabyte>(1, Storage.GIGABYTE));
-			p.setRootVolumeSize(new Storage<Gigabyte>(20, Storage.GIGABYTE));
-			p.setStandardHourlyRate(0.10f);
-			list.add(p);
-
-			p = new VirtualMachineProduct();
-			p.setDescription("4 GB RAM/2 CPU/40 GB Disk");
-			p.setName("Medium");
-			p.setCpuCount(2);
-			p.setProviderProductId("medium");
-			p.setRamSize(new Storage<Gigabyte>(4, Storage.GIGABYTE));
-			p.setRootVolumeSize(new Storage<Gigabyte>(40, Storage.GIGABYTE));
-			p.setStandardHourlyRate(0.15f);
-			list.add(p);
-
-			p = new VirtualMachineProduct();
-			p.setDescription("8 GB RAM/4 CPU/80 GB Disk");
-			p.setName("Large");
-			p.setCpuCount(4);
-			p.setProviderProductId("large");
-			p.setRamSize(new Storage<Gigabyte>(8, Storage.GIGABYTE));
-			p.setRootVolumeSize(new Storage<Gigabyte>(80, Storage.GIGABYTE));
-			p.setStandardHourlyRate(0.25f);
-			list.add(p);
-
-			products = Collections.unmodifiableList(list);
-		}
-		return products;
+		return MockProductCatalog.getInstance().list(architecture);
 	}
 
 	@Override
 	public @Nonnull Iterable<Architecture> listSupportedArchitectures() throws InternalException, CloudException {
-		return Collections.singletonList(Architecture.I64);
+		return MockProductCatalog.getInstance().getArchitectures();
 	}
 
 	@Override
 	public @Nonnull Iterable<ResourceStatus> listVirtualMachineStatus() throws InternalException, CloudException {
-		ArrayList<ResourceStatus> status = new ArrayList<ResourceStatus>();
+		ProviderContext ctx = provider.getContext();
+
+		if (ctx == null) {
+			throw new CloudException("No context was set for this request");
+		}
+		return Iterables.transform(listVisible(ctx, null), new Function<MockVM, ResourceStatus>() {
+
+			@Override
+			public ResourceStatus apply(MockVM mock) {
+				return new ResourceStatus(mock.vmId, mock.currentState);
+			}
+		});
+	}
+
+	/**
+	 * Provides a lazy view of the VMs visible to the account of the specified
+	 * context. Nothing is copied; each VM is checked as the view is iterated.
+	 *
+	 * @param ctx
+	 *            the context of the request
+	 * @param vmIds
+	 *            the IDs of the VMs of interest or <code>null</code> for all VMs
+	 *            in the region
+	 * @return the matching VMs
+	 */
+	@SuppressWarnings("deprecation")
+	private @Nonnull Iterable<MockVM> listVisible(@Nonnull ProviderContext ctx, @Nullable String[] vmIds) {
+		final MockVMStore store = MockVMStore.findInstance(ctx.getEndpoint(), ctx.getRegionId());
+		final String account = ctx.getAccountNumber();
+
+		if (store == null) {
+			return Collections.emptyList();
+		}
+		Iterable<MockVM> candidates;
+
+		if (vmIds == null) {
+			candidates = store.list();
+		} else {
+			candidates = Iterables.transform(Arrays.asList(vmIds), new Function<String, MockVM>() {
+
+				@Override
+				public MockVM apply(String vmId) {
+					return (vmId == null ? null : store.get(vmId));
+				}
+			});
+		}
+		return Iterables.filter(candidates, new Predicate<MockVM>() {
 
-		for (VirtualMachine vm : listVirtualMachines()) {
-			status.add(new ResourceStatus(vm.getProviderVirtualMachineId(), vm.getCurrentState()));
+			@Override
+			public boolean apply(MockVM mock) {
+				return isVisible(mock, account, MockClock.getInstance().now());
+			}
+		});
+	}
+
+	static private boolean isVisible(@Nullable MockVM mock, @Nullable String account, long now) {
+		if (mock == null) {
+			return false;
+		}
+		if (MockVMReaper.isExpired(mock, now)) {
+			return false;
 		}
+		return mock.owner.equals(account);
+	}
+
+	static private @Nonnull VmStatus toVmStatus(@Nonnull VmState state) {
+		switch (state) {
+		case RUNNING:
+			return VmStatus.OK;
+		case PENDING:
+		case REBOOTING:
+		case PAUSING:
+		case SUSPENDING:
+		case STOPPING:
+			return VmStatus.INSUFFICIENT_DATA;
+		default:
+			return VmStatus.NOT_APPLICABLE;
+		}
+	}
+
+	static private @Nonnull VirtualMachineStatus toStatus(@Nonnull MockVM mock) {
+		VirtualMachineStatus status = new VirtualMachineStatus();
+		VmStatus vmStatus = toVmStatus(mock.currentState);
+
+		status.setProviderVirtualMachineId(mock.vmId);
+		status.setProviderHostStatus(vmStatus);
+		status.setProviderVmStatus(vmStatus);
 		return status;
 	}
 
-	@SuppressWarnings("deprecation")
 	@Override
 	public @Nonnull Iterable<VirtualMachine> listVirtualMachines() throws InternalException, CloudException {
+		return streamVirtualMachines(LIST_CHUNK_SIZE);
+	}
+
+	/**
+	 * Lists one page of the virtual machines in the current region. Pages are
+	 * served in launch order and VMs are converted only as they are placed on
+	 * the page.
+	 *
+	 * @param cursor
+	 *            the cursor returned with the previous page or <code>null</code>
+	 *            to start from the beginning
+	 * @param pageSize
+	 *            the maximum number of VMs on the page
+	 * @return the page
+	 * @throws InternalException
+	 *             an error occurred within the Dasein Cloud implementation
+	 * @throws CloudException
+	 *             an error occurred processing the request
+	 */
+	@SuppressWarnings("deprecation")
+	public @Nonnull VirtualMachinePage listVirtualMachines(@Nullable String cursor, @Nonnegative int pageSize)
+			throws InternalException, CloudException {
 		ProviderContext ctx = provider.getContext();
 
 		if (ctx == null) {
 			throw new CloudException("No context was set for this request");
 		}
-		String endpoint = ctx.getEndpoint();
-		String regionId = ctx.getRegionId();
+		if (pageSize < 1) {
+			throw new InternalException("Page size must be positive: " + pageSize);
+		}
+		long position;
+
+		try {
+			position = (cursor == null ? -1L : Long.parseLong(cursor, Character.MAX_RADIX));
+		} catch (NumberFormatException e) {
+			throw new CloudException("Invalid cursor: " + cursor);
+		}
+		MockVMStore store = MockVMStore.findInstance(ctx.getEndpoint(), ctx.getRegionId());
+
+		if (store == null) {
+			return new VirtualMachinePage(Collections.<VirtualMachine> emptyList(), null);
+		}
+		ArrayList<VirtualMachine> page = new ArrayList<VirtualMachine>(pageSize);
+
+		while (page.size() < pageSize) {
+			List<MockVM> chunk = store.page(position, pageSize - page.size());
 
-		synchronized (mockList) {
-			if (!mockList.containsKey(endpoint)) {
-				return Collections.emptyList();
+			if (chunk.isEmpty()) {
+				return new VirtualMachinePage(page, null);
 			}
-			Map<String, Map<String, Collection<MockVM>>> list = mockList.get(endpoint);
+			for (MockVM mock : chunk) {
+				VirtualMachine vm = toVM(ctx, mock);
 
-			if (!list.containsKey(regionId)) {
-				return Collections.emptyList();
+				if (vm != null) {
+					page.add(vm);
+				}
+				position = mock.position;
 			}
-			Map<String, Collection<MockVM>> vms = list.get(regionId);
-			ArrayList<VirtualMachine> matches = new ArrayList<VirtualMachine>();
+		}
+		return new VirtualMachinePage(page, Long.toString(position, Character.MAX_RADIX));
+	}
+
+	/**
+	 * Streams the virtual machines in the current region. Nothing is buffered
+	 * beyond the current chunk of VMs; each chunk is converted only when the
+	 * iterator reaches it.
+	 *
+	 * @param chunkSize
+	 *            the number of VMs converted at a time
+	 * @return a lazy view of the VMs in the current region
+	 * @throws InternalException
+	 *             an error occurred within the Dasein Cloud implementation
+	 * @throws CloudException
+	 *             an error occurred processing the request
+	 */
+	@SuppressWarnings("deprecation")
+	public @Nonnull Iterable<VirtualMachine> streamVirtualMachines(@Nonnegative final int chunkSize)
+			throws InternalException, CloudException {
+		final ProviderContext ctx = provider.getContext();
 
-			for (String dc : vms.keySet()) {
-				Collection<MockVM> c = vms.get(dc);
+		if (ctx == null) {
+			throw new CloudException("No context was set for this request");
+		}
+		if (chunkSize < 1) {
+			throw new InternalException("Chunk size must be positive: " + chunkSize);
+		}
+		final MockVMStore store = MockVMStore.findInstance(ctx.getEndpoint(), ctx.getRegionId());
 
-				if (c != null) {
-					ArrayList<MockVM> replacement = new ArrayList<MockVM>();
+		if (store == null) {
+			return Collections.emptyList();
+		}
+		return new Iterable<VirtualMachine>() {
 
-					for (MockVM mock : c) {
-						VirtualMachine vm = toVM(dc, mock);
+			@Override
+			public Iterator<VirtualMachine> iterator() {
+				return new AbstractIterator<VirtualMachine>() {
 
-						if (vm != null) {
-							matches.add(vm);
-						}
-						if (!mock.currentState.equals(VmState.TERMINATED)
-								|| ((System.currentTimeMillis() - mock.lastTouched) < (CalendarWrapper.MINUTE * 10L))) {
-							replacement.add(mock);
+					private long position = -1L;
+					private Iterator<MockVM> chunk = Collections.<MockVM> emptyList().iterator();
+
+
+					@Override
+					protected VirtualMachine computeNext() {
+						while (true) {
+							if (!chunk.hasNext()) {
+								List<MockVM> next = store.page(position, chunkSize);
+
+								if (next.isEmpty()) {
+									return endOfData();
+								}
+								chunk = next.iterator();
+							}
+							MockVM mock = chunk.next();
+							VirtualMachine vm = toVM(ctx, mock);
+
+							position = mock.position;
+							if (vm != null) {
+								return vm;
+							}
 						}
 					}
-					vms.put(dc, replacement);
-				}
+				};
 			}
-			return matches;
-		}
+		};
 	}
 
 	@Override
@@ -803,17 +981,12 @@ public class MockVMSupport implements VirtualMachineSupport {
 		if (ctx == null) {
 			throw new CloudException("No context was provider for this request");
 		}
-		synchronized (mockList) {
-			MockVM vm = getMockVM(ctx, vmId);
+		MockVM vm = getMockVM(ctx, vmId);
 
-			if (vm == null) {
-				throw new CloudException("No such VM: " + vmId);
-			}
-			if (!vm.currentState.equals(VmState.RUNNING)) {
-				throw new CloudException("The virtual machine must be running in order to be paused");
-			}
-			vm.currentState = VmState.PAUSING;
+		if (vm == null) {
+			throw new CloudException("No such VM: " + vmId);
 		}
+		MockVMLifecycle.apply(vm, Operation.PAUSE);
 	}
 
 	@Override
@@ -823,17 +996,12 @@ public class MockVMSupport implements VirtualMachineSupport {
 		if (ctx == null) {
 			throw new CloudException("No context was provider for this request");
 		}
-		synchronized (mockList) {
-			MockVM vm = getMockVM(ctx, vmId);
+		MockVM vm = getMockVM(ctx, vmId);
 
-			if (vm == null) {
-				throw new CloudException("No such VM: " + vmId);
-			}
-			if (!vm.currentState.equals(VmState.RUNNING)) {
-				throw new CloudException("The virtual machine must be running in order to be rebooted");
-			}
-			vm.currentState = VmState.REBOOTING;
+		if (vm == null) {
+			throw new CloudException("No such VM: " + vmId);
 		}
+		MockVMLifecycle.apply(vm, Operation.REBOOT);
 	}
 
 	@Override
@@ -843,17 +1011,12 @@ public class MockVMSupport implements VirtualMachineSupport {
 		if (ctx == null) {
 			throw new CloudException("No context was provider for this request");
 		}
-		synchronized (mockList) {
-			MockVM vm = getMockVM(ctx, vmId);
+		MockVM vm = getMockVM(ctx, vmId);
 
-			if (vm == null) {
-				throw new CloudException("No such VM: " + vmId);
-			}
-			if (!vm.currentState.equals(VmState.SUSPENDED)) {
-				throw new CloudException("The virtual machine must be suspended in order to be resumed");
-			}
-			vm.currentState = VmState.PENDING;
+		if (vm == null) {
+			throw new CloudException("No such VM: " + vmId);
 		}
+		MockVMLifecycle.apply(vm, Operation.RESUME);
 	}
 
 	@Override
@@ -863,17 +1026,12 @@ public class MockVMSupport implements VirtualMachineSupport {
 		if (ctx == null) {
 			throw new CloudException("No context was provider for this request");
 		}
-		synchronized (mockList) {
-			MockVM vm = getMockVM(ctx, vmId);
+		MockVM vm = getMockVM(ctx, vmId);
 
-			if (vm == null) {
-				throw new CloudException("No such VM: " + vmId);
-			}
-			if (!vm.currentState.equals(VmState.STOPPED)) {
-				throw new CloudException("The virtual machine must be stopped in order to be started");
-			}
-			vm.currentState = VmState.PENDING;
+		if (vm == null) {
+			throw new CloudException("No such VM: " + vmId);
 		}
+		MockVMLifecycle.apply(vm, Operation.START);
 	}
 
 	@Override
@@ -888,17 +1046,12 @@ public class MockVMSupport implements VirtualMachineSupport {
 		if (ctx == null) {
 			throw new CloudException("No context was provider for this request");
 		}
-		synchronized (mockList) {
-			MockVM vm = getMockVM(ctx, vmId);
+		MockVM vm = getMockVM(ctx, vmId);
 
-			if (vm == null) {
-				throw new CloudException("No such VM: " + vmId);
-			}
-			if (!vm.currentState.equals(VmState.RUNNING)) {
-				throw new CloudException("The virtual machine must be running in order to be stopped");
-			}
-			vm.currentState = VmState.STOPPING;
+		if (vm == null) {
+			throw new CloudException("No such VM: " + vmId);
 		}
+		MockVMLifecycle.apply(vm, Operation.STOP);
 	}
 
 	@Override
@@ -928,17 +1081,12 @@ public class MockVMSupport implements VirtualMachineSupport {
 		if (ctx == null) {
 			throw new CloudException("No context was provider for this request");
 		}
-		synchronized (mockList) {
-			MockVM vm = getMockVM(ctx, vmId);
+		MockVM vm = getMockVM(ctx, vmId);
 
-			if (vm == null) {
-				throw new CloudException("No such VM: " + vmId);
-			}
-			if (!vm.currentState.equals(VmState.RUNNING)) {
-				throw new CloudException("The virtual machine must be running in order to be suspended");
-			}
-			vm.currentState = VmState.SUSPENDING;
+		if (vm == null) {
+			throw new CloudException("No such VM: " + vmId);
 		}
+		MockVMLifecycle.apply(vm, Operation.SUSPEND);
 	}
 
 	@Override
@@ -948,26 +1096,26 @@ public class MockVMSupport implements VirtualMachineSupport {
 		if (ctx == null) {
 			throw new CloudException("No context was provider for this request");
 		}
-		String ip;
+		terminate(ctx, vmId);
+	}
+
+	/**
+	 * Terminates a VM on behalf of the account of an explicit context.
+	 *
+	 * @param ctx
+	 *            the context of the account owning the VM
+	 * @param vmId
+	 *            the VM to terminate
+	 * @throws CloudException
+	 *             no such VM is visible to the account
+	 */
+	void terminate(@Nonnull ProviderContext ctx, @Nonnull String vmId) throws CloudException {
+		MockVM vm = getMockVM(ctx, vmId);
 
-		synchronized (mockList) {
-			MockVM vm = getMockVM(ctx, vmId);
-
-			if (vm == null) {
-				throw new CloudException("No such VM: " + vmId);
-			}
-			ip = MockIPSupport.getIPAddressForVM(vm.vmId);
-			if (vm.currentState.equals(VmState.TERMINATED)) {
-				throw new CloudException("The virtual machine is already terminated.");
-			}
-			vm.currentState = VmState.TERMINATED;
-			vm.lastTouched = System.currentTimeMillis();
-		}
-		if (ip != null) {
-			// noinspection ConstantConditions
-			provider.getNetworkServices().getIpAddressSupport().releaseFromServer(ip);
+		if (vm == null) {
+			throw new CloudException("No such VM: " + vmId);
 		}
-		MockFirewallSupport.vmTerminated(vmId);
+		MockVMLifecycle.apply(vm, Operation.TERMINATE);
 	}
 
 	@Override
@@ -977,22 +1125,17 @@ public class MockVMSupport implements VirtualMachineSupport {
 		if (ctx == null) {
 			throw new CloudException("No context was provider for this request");
 		}
-		synchronized (mockList) {
-			MockVM vm = getMockVM(ctx, vmId);
+		MockVM vm = getMockVM(ctx, vmId);
 
-			if (vm == null) {
-				throw new CloudException("No such VM: " + vmId);
-			}
-			if (!vm.currentState.equals(VmState.PAUSED)) {
-				throw new CloudException("The virtual machine must be paused in order to be unpaused");
-			}
-			vm.currentState = VmState.PAUSING;
+		if (vm == null) {
+			throw new CloudException("No such VM: " + vmId);
 		}
+		MockVMLifecycle.apply(vm, Operation.UNPAUSE);
 	}
 
 	@Override
 	public void updateTags(@Nonnull String vmId, @Nonnull Tag... tags) throws CloudException, InternalException {
-		// NO-OP
+		updateTags(new String[] { vmId }, tags);
 	}
 
 	@Override
@@ -1000,55 +1143,79 @@ public class MockVMSupport implements VirtualMachineSupport {
 		return new String[0];
 	}
 
-	private @Nullable VirtualMachine toVM(@Nonnull String dcId, @Nullable MockVM mock) throws CloudException {
-		if (mock == null) {
-			return null;
-		}
-		if (mock.currentState.equals(VmState.TERMINATED)
-				&& ((System.currentTimeMillis() - mock.lastTouched) > (CalendarWrapper.MINUTE * 10L))) {
-			return null;
-		}
+	private @Nullable VirtualMachine toVM(@Nullable MockVM mock) throws CloudException {
 		ProviderContext ctx = provider.getContext();
 
 		if (ctx == null) {
 			throw new CloudException("No context was set for this request");
 		}
-		if (!mock.owner.equals(ctx.getAccountNumber())) {
+		return toVM(ctx, mock);
+	}
+
+	/**
+	 * Projects a mock VM into a new {@link VirtualMachine}. The snapshot the
+	 * result is built from is cached on the mock VM and reused for as long as
+	 * neither the VM nor its IP assignment changes; the result itself belongs
+	 * to the caller.
+	 */
+	private @Nullable VirtualMachine toVM(@Nonnull ProviderContext ctx, @Nullable MockVM mock) {
+		if (!isVisible(mock, ctx.getAccountNumber(), MockClock.getInstance().now())) {
 			return null;
 		}
+		String ipAddressId = MockIPSupport.getIPAddressForVM(mock.vmId);
+		MockVM.Projection projection = mock.projection;
+
+		if (projection != null && projection.version == mock.version
+				&& (ipAddressId == null ? projection.ipAddressId == null : ipAddressId.equals(projection.ipAddressId))) {
+			return toVM(ctx.getRegionId(), projection);
+		}
+		synchronized (mock) {
+			projection = new MockVM.Projection(mock, ipAddressId);
+		}
+		mock.projection = projection;
+		return toVM(ctx.getRegionId(), projection);
+	}
+
+	static private @Nonnull VirtualMachine toVM(@Nonnull String regionId, @Nonnull MockVM.Projection snapshot) {
 		VirtualMachine vm = new VirtualMachine();
 
 		vm.setImagable(true);
-		vm.setLastBootTimestamp(mock.lastBoot);
-		vm.setLastPauseTimestamp(mock.lastPaused);
-		vm.setName(mock.name);
+		vm.setLastBootTimestamp(snapshot.lastBoot);
+		vm.setLastPauseTimestamp(snapshot.lastPaused);
+		vm.setName(snapshot.name);
 		vm.setPausable(true);
 		vm.setPersistent(true);
-		vm.setPlatform(mock.platform);
-		vm.setPrivateAddresses(new RawAddress(mock.privateIpAddress));
-		vm.setProductId(mock.productId);
-		vm.setProviderDataCenterId(dcId);
-		vm.setProviderMachineImageId(mock.imageId);
-		vm.setProviderOwnerId(mock.owner);
-		vm.setProviderRegionId(ctx.getRegionId());
-		vm.setProviderSubnetId(mock.subnetId);
-		vm.setProviderVirtualMachineId(mock.vmId);
-		vm.setProviderVlanId(mock.vlanId);
-		vm.setPublicAddresses(new RawAddress(mock.publicIpAddress));
+		vm.setPlatform(snapshot.platform);
+		vm.setPrivateAddresses(new RawAddress(snapshot.privateIpAddress));
+		vm.setProductId(snapshot.productId);
+		vm.setProviderDataCenterId(snapshot.dataCenterId);
+		vm.setProviderMachineImageId(snapshot.imageId);
+		vm.setProviderOwnerId(snapshot.owner);
+		vm.setProviderRegionId(regionId);
+		vm.setProviderSubnetId(snapshot.subnetId);
+		vm.setProviderVirtualMachineId(snapshot.vmId);
+		vm.setProviderVlanId(snapshot.vlanId);
+		vm.setPublicAddresses(new RawAddress(snapshot.publicIpAddress));
 		vm.setRebootable(true);
-		vm.setRootPassword(mock.rootPassword);
-		vm.setRootUser(mock.rootUser);
+		vm.setRootPassword(snapshot.rootPassword);
+		vm.setRootUser(snapshot.rootUser);
 		vm.setArchitecture(Architecture.I64);
-		if (mock.currentState.equals(VmState.TERMINATED)) {
-			vm.setTerminationTimestamp(mock.lastTouched);
+		if (snapshot.currentState.equals(VmState.TERMINATED)) {
+			vm.setTerminationTimestamp(snapshot.lastTouched);
 		}
-		vm.setClonable(false);
-		vm.setCreationTimestamp(mock.created);
-		vm.setCurrentState(mock.currentState);
-		vm.setDescription(mock.description);
-		vm.setProviderAssignedIpAddressId(MockIPSupport.getIPAddressForVM(mock.vmId));
-		if (vm.getProviderAssignedIpAddressId() != null) {
-			vm.setPublicAddresses(new RawAddress(vm.getProviderAssignedIpAddressId()));
+		// clone() accepts any VM that has not terminated
+		vm.setClonable(!VmState.TERMINATED.equals(snapshot.currentState));
+		vm.setCreationTimestamp(snapshot.created);
+		vm.setCurrentState(snapshot.currentState);
+		vm.setDescription(snapshot.description);
+		for (Map.Entry<String, String> tag : snapshot.tags.entrySet()) {
+			if (tag.getValue() != null) {
+				vm.setTag(tag.getKey(), tag.getValue());
+			}
+		}
+		vm.setProviderAssignedIpAddressId(snapshot.ipAddressId);
+		if (snapshot.ipAddressId != null) {
+			vm.setPublicAddresses(new RawAddress(snapshot.ipAddressId));
 		}
 		return vm;
 	}
@@ -1081,16 +1248,59 @@ public class MockVMSupport implements VirtualMachineSupport {
 
 	}
 
+	@SuppressWarnings("deprecation")
 	@Override
 	public void cancelSpotVirtualMachineRequest(String providerSpotVirtualMachineRequestID) throws CloudException,
 			InternalException {
+		ProviderContext ctx = provider.getContext();
 
+		if (ctx == null) {
+			throw new CloudException("No context was set for this request");
+		}
+		MockSpotMarket.cancel(ctx.getEndpoint(), ctx.getRegionId(), ctx.getAccountNumber(),
+				providerSpotVirtualMachineRequestID);
 	}
 
+	@SuppressWarnings("deprecation")
 	@Override
 	public SpotVirtualMachineRequest createSpotVirtualMachineRequest(SpotVirtualMachineRequestCreateOptions options)
 			throws CloudException, InternalException {
-		return null;
+		ProviderContext ctx = provider.getContext();
+
+		if (ctx == null) {
+			throw new CloudException("No context was set for this request");
+		}
+		String regionId = ctx.getRegionId();
+
+		if (regionId == null) {
+			throw new CloudException("No region was provided for this request");
+		}
+		VirtualMachineProduct prd = getProduct(options.getStandardProductId());
+
+		if (prd == null) {
+			throw new CloudException("No such VM product: " + options.getStandardProductId());
+		}
+		MachineImage image = provider.getComputeServices().getImageSupport().getImage(options.getMachineImageId());
+
+		if (image == null) {
+			throw new CloudException("No such machine image: " + options.getMachineImageId());
+		}
+		if (options.getMaximumPrice() <= 0f) {
+			throw new CloudException("The maximum price must be positive");
+		}
+		ArrayList<String> dataCenterIds = new ArrayList<String>();
+
+		for (DataCenter dc : provider.getDataCenterServices().listDataCenters(regionId)) {
+			if (dc.isActive() && dc.isAvailable()) {
+				dataCenterIds.add(dc.getProviderDataCenterId());
+			}
+		}
+		if (dataCenterIds.isEmpty()) {
+			throw new CloudException("Unable to identify an available data center for spot VMs");
+		}
+		return MockSpotMarket.submit(this, ctx, prd.getProviderProductId(), image.getProviderMachineImageId(),
+				options.getMaximumPrice(), options.getType(), options.getVmCount(), options.getValidFromTimestamp(),
+				options.getValidUntilTimestamp(), options.getLaunchGroup(), dataCenterIds, prd.getStandardHourlyRate());
 	}
 
 	@Override
@@ -1105,71 +1315,301 @@ public class MockVMSupport implements VirtualMachineSupport {
 
 	@Override
 	public String getPassword(String vmId) throws InternalException, CloudException {
+		MockVM mock = getVisibleMockVM(vmId);
 
-		return null;
+		if (mock == null) {
+			throw new CloudException("No such VM: " + vmId);
+		}
+		return mock.rootPassword;
 	}
 
 	@Override
 	public String getUserData(String vmId) throws InternalException, CloudException {
+		MockVM mock = getVisibleMockVM(vmId);
 
-		return null;
+		if (mock == null) {
+			throw new CloudException("No such VM: " + vmId);
+		}
+		MockUserData userData = mock.userData;
+
+		return (userData == null ? null : userData.getText());
 	}
 
 	@Override
 	public Iterable<VirtualMachineStatus> getVMStatus(String... vmIds) throws InternalException, CloudException {
+		ProviderContext ctx = provider.getContext();
 
-		return null;
+		if (ctx == null) {
+			throw new CloudException("No context was set for this request");
+		}
+		return Iterables.transform(listVisible(ctx, vmIds), new Function<MockVM, VirtualMachineStatus>() {
+
+			@Override
+			public VirtualMachineStatus apply(MockVM mock) {
+				return toStatus(mock);
+			}
+		});
 	}
 
 	@Override
 	public Iterable<VirtualMachineStatus> getVMStatus(VmStatusFilterOptions filterOptions) throws InternalException,
 			CloudException {
+		if (filterOptions == null) {
+			return getVMStatus((String[]) null);
+		}
+		ProviderContext ctx = provider.getContext();
 
-		return null;
+		if (ctx == null) {
+			throw new CloudException("No context was set for this request");
+		}
+		final Set<VmStatus> vmStatuses = filterOptions.getVmStatuses();
+		final Set<VmStatus> hostStatuses = filterOptions.getInstanceStatuses();
+		Iterable<MockVM> vms = listVisible(ctx, filterOptions.getVmIds());
+
+		if ((vmStatuses != null && !vmStatuses.isEmpty()) || (hostStatuses != null && !hostStatuses.isEmpty())) {
+			vms = Iterables.filter(vms, new Predicate<MockVM>() {
+
+				@Override
+				public boolean apply(MockVM mock) {
+					VmStatus status = toVmStatus(mock.currentState);
+
+					if (vmStatuses != null && !vmStatuses.isEmpty() && !vmStatuses.contains(status)) {
+						return false;
+					}
+					return (hostStatuses == null || hostStatuses.isEmpty() || hostStatuses.contains(status));
+				}
+			});
+		}
+		return Iterables.transform(vms, new Function<MockVM, VirtualMachineStatus>() {
+
+			@Override
+			public VirtualMachineStatus apply(MockVM mock) {
+				return toStatus(mock);
+			}
+		});
 	}
 
 	@Override
 	public Iterable<String> launchMany(VMLaunchOptions withLaunchOptions, int count) throws CloudException,
 			InternalException {
+		ProviderContext ctx = provider.getContext();
 
-		return null;
+		if (ctx == null) {
+			throw new CloudException("No context was provided for this request");
+		}
+		return launchMany(ctx, withLaunchOptions, count);
+	}
+
+	/**
+	 * Launches a batch of VMs on behalf of the account of an explicit context
+	 * rather than the current context of the provider, as is needed for work
+	 * done in the background such as fulfilling spot requests.
+	 *
+	 * @param ctx
+	 *            the context of the account launching the VMs
+	 * @param withLaunchOptions
+	 *            the launch options
+	 * @param count
+	 *            the number of VMs to launch
+	 * @return the IDs of the launched VMs
+	 * @throws CloudException
+	 *             the options are invalid or no data center has room for the
+	 *             VMs
+	 * @throws InternalException
+	 *             an error occurred resolving the options
+	 */
+	@SuppressWarnings("deprecation")
+	@Nonnull List<String> launchMany(@Nonnull ProviderContext ctx, @Nonnull VMLaunchOptions withLaunchOptions,
+			int count) throws CloudException, InternalException {
+		String regionId = ctx.getRegionId();
+
+		if (regionId == null) {
+			throw new CloudException("No region was provided for this request");
+		}
+		if (count < 1) {
+			return Collections.emptyList();
+		}
+		long start = System.nanoTime();
+		MockVM template = prepare(ctx, regionId, withLaunchOptions, count);
+		String[][] ips = null;
+		ArrayList<MockVM> batch = new ArrayList<MockVM>(count);
+		ArrayList<String> ids = new ArrayList<String>(count);
+		boolean launched = false;
+
+		try {
+			long firstId = idAllocator.reserve(regionId, count);
+			long now = MockClock.getInstance().now();
+
+			ips = (template.vlanId == null ? getNextIpPairs(count) : null);
+			for (int i = 0; i < count; i++) {
+				MockVM newVm = instantiate(template, regionId + "-" + (firstId + i), (ips == null ? null : ips[i]), now);
+
+				batch.add(newVm);
+				ids.add(newVm.vmId);
+			}
+			String[] firewalls = withLaunchOptions.getFirewallIds();
+
+			if (firewalls.length > 0) {
+				MockFirewallSupport.saveFirewallsForVMs(provider, ids, firewalls);
+			}
+			launched = true;
+		} finally {
+			if (!launched) {
+				abandon(template, ips, count);
+			}
+		}
+		for (MockVM newVm : batch) {
+			MockVMLifecycle.enter(newVm, VmState.PENDING);
+		}
+		MockVMStore.getInstance(ctx.getEndpoint(), regionId).addAll(batch);
+		if (logger.isDebugEnabled()) {
+			long elapsed = Math.max(1L, System.nanoTime() - start);
+
+			logger.debug("Launched " + count + " VMs in " + (elapsed / 1000000L) + " ms ("
+					+ ((count * 1000000000L) / elapsed) + " VMs/s)");
+		}
+		return Collections.unmodifiableList(ids);
 	}
 
 	@Override
 	public Iterable<VirtualMachineProduct> listProducts(String machineImageId, VirtualMachineProductFilterOptions options)
 			throws InternalException, CloudException {
-		return listProducts(options.getArchitecture());
-	}
+		MockProductCatalog catalog = MockProductCatalog.getInstance();
 
-	@Override
-	public Iterable<VirtualMachineProduct> listAllProducts() throws InternalException, CloudException {
-		List<VirtualMachineProduct> products = new ArrayList<VirtualMachineProduct>();
-		for (Architecture architecture : listSupportedArchitectures()) {
-			for (VirtualMachineProduct prd : listProducts(architecture)) {
+		if (options == null) {
+			return catalog.list();
+		}
+		// the CPU and RAM ranges select the candidates; matches() applies the remaining criteria to them only
+		int minCpu = Math.max(0, options.getMinCpuCount());
+		int maxCpu = (options.getMaxCpuCount() > 0 ? options.getMaxCpuCount() : Integer.MAX_VALUE);
+		long minRam = Math.max(0L, options.getMinRamSize());
+		long maxRam = (options.getMaxRamSize() > 0 ? options.getMaxRamSize() : Long.MAX_VALUE);
+		List<VirtualMachineProduct> candidates = catalog.select(options.getArchitecture(), minCpu, maxCpu, minRam,
+				maxRam);
+		ArrayList<VirtualMachineProduct> products = new ArrayList<VirtualMachineProduct>(candidates.size());
+
+		for (VirtualMachineProduct prd : candidates) {
+			if (options.matches(prd)) {
 				products.add(prd);
 			}
 		}
 		return products;
 	}
 
+	@Override
+	public Iterable<VirtualMachineProduct> listAllProducts() throws InternalException, CloudException {
+		return MockProductCatalog.getInstance().list();
+	}
+
 	@Override
 	public Iterable<SpotPriceHistory> listSpotPriceHistories(SpotPriceHistoryFilterOptions options) throws CloudException,
 			InternalException {
+		ProviderContext ctx = provider.getContext();
 
-		return null;
+		if (ctx == null) {
+			throw new CloudException("No context was set for this request");
+		}
+		String regionId = ctx.getRegionId();
+
+		if (regionId == null) {
+			throw new CloudException("No region was provided for this request");
+		}
+		ArrayList<String> dataCenterIds = new ArrayList<String>();
+
+		if (options != null && options.getDataCenterId() != null) {
+			dataCenterIds.add(options.getDataCenterId());
+		} else {
+			for (DataCenter dc : provider.getDataCenterServices().listDataCenters(regionId)) {
+				dataCenterIds.add(dc.getProviderDataCenterId());
+			}
+		}
+		ArrayList<VirtualMachineProduct> products = new ArrayList<VirtualMachineProduct>();
+		String[] productIds = (options == null ? null : options.getProductIds());
+
+		if (productIds != null && productIds.length > 0) {
+			for (String productId : productIds) {
+				VirtualMachineProduct prd = getProduct(productId);
+
+				if (prd != null) {
+					products.add(prd);
+				}
+			}
+		} else {
+			for (VirtualMachineProduct prd : listProducts(Architecture.I64)) {
+				products.add(prd);
+			}
+		}
+		long to = (options == null || options.getEndTimestamp() < 1L ? MockClock.getInstance().now() : options
+				.getEndTimestamp());
+		long from = (options == null || options.getStartTimestamp() < 1L ? to - CalendarWrapper.DAY : options
+				.getStartTimestamp());
+		ArrayList<SpotPriceHistory> histories = new ArrayList<SpotPriceHistory>();
+
+		for (String dataCenterId : dataCenterIds) {
+			for (VirtualMachineProduct prd : products) {
+				SpotPrice[] prices =
+						MockSpotMarket.getPriceHistory(ctx.getEndpoint(), regionId, dataCenterId,
+								prd.getProviderProductId(), prd.getStandardHourlyRate(), from, to);
+
+				histories.add(SpotPriceHistory.getInstance(dataCenterId, prd.getProviderProductId(), prices));
+			}
+		}
+		return histories;
 	}
 
+	@SuppressWarnings("deprecation")
 	@Override
 	public Iterable<SpotVirtualMachineRequest>
 			listSpotVirtualMachineRequests(SpotVirtualMachineRequestFilterOptions options) throws CloudException,
 					InternalException {
+		ProviderContext ctx = provider.getContext();
 
-		return null;
+		if (ctx == null) {
+			throw new CloudException("No context was set for this request");
+		}
+		if (options == null) {
+			return MockSpotMarket.list(ctx.getEndpoint(), ctx.getRegionId(), ctx.getAccountNumber(), null, null, 0L, 0L);
+		}
+		return MockSpotMarket.list(ctx.getEndpoint(), ctx.getRegionId(), ctx.getAccountNumber(), options.getType(),
+				options.getStandardProductId(), options.getValidFromTimestamp(), options.getValidUntilTimestamp());
 	}
 
+	@SuppressWarnings("deprecation")
 	@Override
 	public Iterable<VirtualMachine> listVirtualMachines(VMFilterOptions options) throws InternalException, CloudException {
-		return this.listVirtualMachines();
+		if (options == null) {
+			return this.listVirtualMachines();
+		}
+		ProviderContext ctx = provider.getContext();
+
+		if (ctx == null) {
+			throw new CloudException("No context was set for this request");
+		}
+		MockVMQuery query =
+				MockVMQuery.getInstance().ownedBy(ctx.getAccountNumber()).inStates(options.getVmStates())
+						.withTags(options.getTags()).matchingRegex(options.getRegex());
+
+		if (options.isMatchesAny()) {
+			query.matchingAny();
+		}
+		if (!query.hasCriteria()) {
+			return this.listVirtualMachines();
+		}
+		MockVMStore store = MockVMStore.findInstance(ctx.getEndpoint(), ctx.getRegionId());
+
+		if (store == null) {
+			return Collections.emptyList();
+		}
+		ArrayList<VirtualMachine> matches = new ArrayList<VirtualMachine>();
+
+		for (MockVM mock : store.select(query)) {
+			VirtualMachine vm = toVM(mock);
+
+			if (vm != null) {
+				matches.add(vm);
+			}
+		}
+		return matches;
 	}
 
 	@Override
@@ -1178,27 +1618,95 @@ public class MockVMSupport implements VirtualMachineSupport {
 	}
 
 	@Override
-	public void updateTags(String[] vmIds, Tag... tags) throws CloudException, InternalException {
+	public void updateTags(String[] vmIds, final Tag... tags) throws CloudException, InternalException {
+		retag(vmIds, new Function<Map<String, String>, Map<String, String>>() {
+
+			@Override
+			public Map<String, String> apply(Map<String, String> current) {
+				HashMap<String, String> updated = new HashMap<String, String>(current);
 
+				for (Tag tag : tags) {
+					updated.put(tag.getKey(), tag.getValue());
+				}
+				return updated;
+			}
+		});
 	}
 
 	@Override
 	public void setTags(String vmId, Tag... tags) throws CloudException, InternalException {
-
+		setTags(new String[] { vmId }, tags);
 	}
 
 	@Override
-	public void setTags(String[] vmIds, Tag... tags) throws CloudException, InternalException {
+	public void setTags(String[] vmIds, final Tag... tags) throws CloudException, InternalException {
+		retag(vmIds, new Function<Map<String, String>, Map<String, String>>() {
+
+			@Override
+			public Map<String, String> apply(Map<String, String> current) {
+				HashMap<String, String> updated = new HashMap<String, String>();
 
+				for (Tag tag : tags) {
+					updated.put(tag.getKey(), tag.getValue());
+				}
+				return updated;
+			}
+		});
 	}
 
 	@Override
 	public void removeTags(String vmId, Tag... tags) throws CloudException, InternalException {
-
+		removeTags(new String[] { vmId }, tags);
 	}
 
 	@Override
-	public void removeTags(String[] vmIds, Tag... tags) throws CloudException, InternalException {
+	public void removeTags(String[] vmIds, final Tag... tags) throws CloudException, InternalException {
+		retag(vmIds, new Function<Map<String, String>, Map<String, String>>() {
+
+			@Override
+			public Map<String, String> apply(Map<String, String> current) {
+				HashMap<String, String> updated = new HashMap<String, String>(current);
+
+				for (Tag tag : tags) {
+					String value = tag.getValue();
+
+					// a tag without a value removes the key whatever its value
+					if (value == null || value.isEmpty() || value.equals(updated.get(tag.getKey()))) {
+						updated.remove(tag.getKey());
+					}
+				}
+				return updated;
+			}
+		});
+	}
+
+	/**
+	 * Applies a tag change to a batch of VMs as a single store mutation. Every
+	 * VM is resolved before any is changed, so an unknown VM fails the whole
+	 * batch.
+	 */
+	@SuppressWarnings("deprecation")
+	private void retag(@Nonnull String[] vmIds, @Nonnull Function<Map<String, String>, Map<String, String>> change)
+			throws CloudException {
+		ProviderContext ctx = provider.getContext();
 
+		if (ctx == null) {
+			throw new CloudException("No context was set for this request");
+		}
+		MockVMStore store = MockVMStore.findInstance(ctx.getEndpoint(), ctx.getRegionId());
+		ArrayList<MockVM> batch = new ArrayList<MockVM>(vmIds.length);
+		long now = MockClock.getInstance().now();
+
+		for (String vmId : vmIds) {
+			MockVM vm = (store == null ? null : store.get(vmId));
+
+			if (!isVisible(vm, ctx.getAccountNumber(), now)) {
+				throw new CloudException("No such VM: " + vmId);
+			}
+			batch.add(vm);
+		}
+		if (store != null && !batch.isEmpty()) {
+			store.retag(batch, change);
+		}
 	}
 }
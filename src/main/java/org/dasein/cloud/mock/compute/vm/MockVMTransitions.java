@@ -0,0 +1,141 @@
+/**
+ * Copyright (C) 2009-2012 enStratus Networks Inc.
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+
+package org.dasein.cloud.mock.compute.vm;
+
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.dasein.cloud.compute.VmState;
+
+/**
+ * The rules governing the states of mock VMs, kept in one table. Each
+ * {@link Operation} requested through the API maps the states it may be
+ * applied to onto the state it moves the VM into, and each transitional
+ * state maps onto the state it settles into on its own. The table has no
+ * dependencies on the rest of the mock cloud and can be exercised in
+ * isolation.
+ */
+final class MockVMTransitions {
+
+	/**
+	 * The lifecycle operations that may be requested for a VM.
+	 */
+	enum Operation {
+		PAUSE("The virtual machine must be running in order to be paused"),
+		REBOOT("The virtual machine must be running in order to be rebooted"),
+		RESUME("The virtual machine must be suspended in order to be resumed"),
+		START("The virtual machine must be stopped in order to be started"),
+		STOP("The virtual machine must be running in order to be stopped"),
+		SUSPEND("The virtual machine must be running in order to be suspended"),
+		UNPAUSE("The virtual machine must be paused in order to be unpaused"),
+		TERMINATE("The virtual machine is already terminated.");
+
+		private final String guardMessage;
+
+
+		private Operation(@Nonnull String guardMessage) {
+			this.guardMessage = guardMessage;
+		}
+
+		/**
+		 * @return the explanation given when the operation is not allowed in
+		 *         the current state
+		 */
+		@Nonnull
+		String getGuardMessage() {
+			return guardMessage;
+		}
+	}
+
+
+	static private final Map<Operation, Map<VmState, VmState>> operations =
+			new EnumMap<Operation, Map<VmState, VmState>>(Operation.class);
+	static private final Map<VmState, VmState> settlements = new EnumMap<VmState, VmState>(VmState.class);
+
+	static {
+		allow(Operation.PAUSE, VmState.PAUSING, VmState.RUNNING);
+		allow(Operation.REBOOT, VmState.REBOOTING, VmState.RUNNING);
+		allow(Operation.RESUME, VmState.PENDING, VmState.SUSPENDED);
+		allow(Operation.START, VmState.PENDING, VmState.STOPPED);
+		allow(Operation.STOP, VmState.STOPPING, VmState.RUNNING);
+		allow(Operation.SUSPEND, VmState.SUSPENDING, VmState.RUNNING);
+		allow(Operation.UNPAUSE, VmState.PENDING, VmState.PAUSED);
+
+		Set<VmState> live = EnumSet.allOf(VmState.class);
+
+		live.remove(VmState.TERMINATED);
+		allow(Operation.TERMINATE, VmState.TERMINATED, live.toArray(new VmState[live.size()]));
+
+		settlements.put(VmState.PENDING, VmState.RUNNING);
+		settlements.put(VmState.PAUSING, VmState.PAUSED);
+		settlements.put(VmState.SUSPENDING, VmState.SUSPENDED);
+		settlements.put(VmState.STOPPING, VmState.STOPPED);
+		settlements.put(VmState.REBOOTING, VmState.PENDING);
+	}
+
+
+	private MockVMTransitions() {
+	}
+
+	static private void allow(@Nonnull Operation operation, @Nonnull VmState target, @Nonnull VmState... from) {
+		Map<VmState, VmState> transitions = operations.get(operation);
+
+		if (transitions == null) {
+			transitions = new EnumMap<VmState, VmState>(VmState.class);
+			operations.put(operation, transitions);
+		}
+		for (VmState state : from) {
+			transitions.put(state, target);
+		}
+	}
+
+	/**
+	 * Identifies the state an operation moves a VM into.
+	 *
+	 * @param operation
+	 *            the requested operation
+	 * @param current
+	 *            the current state of the VM
+	 * @return the target state or <code>null</code> if the operation is not
+	 *         allowed in the current state
+	 */
+	static @Nullable VmState target(@Nonnull Operation operation, @Nonnull VmState current) {
+		Map<VmState, VmState> transitions = operations.get(operation);
+
+		return (transitions == null ? null : transitions.get(current));
+	}
+
+	/**
+	 * Identifies the state a VM settles into on its own after the specified
+	 * transitional state.
+	 *
+	 * @param state
+	 *            the current state
+	 * @return the next state or <code>null</code> if the state is stable
+	 */
+	static @Nullable VmState settle(@Nonnull VmState state) {
+		return settlements.get(state);
+	}
+}
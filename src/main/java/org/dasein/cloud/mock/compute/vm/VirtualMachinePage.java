@@ -0,0 +1,56 @@
+/**
+ * Copyright (C) 2009-2012 enStratus Networks Inc.
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.mock.compute.vm;
+
+import java.util.Collections;
+import java.util.List;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.dasein.cloud.compute.VirtualMachine;
+
+/**
+ * One page of a virtual machine listing. The cursor is opaque to callers and
+ * is passed back to {@link MockVMSupport#listVirtualMachines(String, int)} to
+ * fetch the page that follows; it is <code>null</code> on the last page.
+ */
+public class VirtualMachinePage {
+
+	private final List<VirtualMachine> virtualMachines;
+	private final String nextCursor;
+
+
+	VirtualMachinePage(@Nonnull List<VirtualMachine> virtualMachines, @Nullable String nextCursor) {
+		this.virtualMachines = Collections.unmodifiableList(virtualMachines);
+		this.nextCursor = nextCursor;
+	}
+
+	public @Nonnull List<VirtualMachine> getVirtualMachines() {
+		return virtualMachines;
+	}
+
+	public @Nullable String getNextCursor() {
+		return nextCursor;
+	}
+
+	public boolean hasMore() {
+		return (nextCursor != null);
+	}
+}
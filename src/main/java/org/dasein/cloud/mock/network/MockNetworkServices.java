@@ -21,12 +21,14 @@ package org.dasein.cloud.mock.network;
 import javax.annotation.Nonnull;
 
 import org.dasein.cloud.CloudProvider;
+import org.dasein.cloud.mock.MockServiceRegistry;
 import org.dasein.cloud.mock.network.firewall.MockFirewallSupport;
 import org.dasein.cloud.mock.network.ip.MockIPSupport;
 import org.dasein.cloud.network.AbstractNetworkServices;
 import org.dasein.cloud.network.FirewallSupport;
 import org.dasein.cloud.network.IpAddressSupport;
 
+import com.google.common.base.Supplier;
 import com.infinities.skyport.network.SkyportNetworkServices;
 import com.infinities.skyport.network.SkyportVLANSupport;
 
@@ -42,22 +44,40 @@ import com.infinities.skyport.network.SkyportVLANSupport;
  */
 public class MockNetworkServices extends AbstractNetworkServices<CloudProvider> implements SkyportNetworkServices {
 
-	private CloudProvider provider;
+	private final CloudProvider provider;
+	private final MockServiceRegistry registry;
+
+	private final Supplier<MockFirewallSupport> firewallSupport = new Supplier<MockFirewallSupport>() {
+
+		@Override
+		public MockFirewallSupport get() {
+			return new MockFirewallSupport(provider);
+		}
+	};
+
+	private final Supplier<MockIPSupport> ipSupport = new Supplier<MockIPSupport>() {
+
+		@Override
+		public MockIPSupport get() {
+			return new MockIPSupport(provider);
+		}
+	};
 
 
 	public MockNetworkServices(CloudProvider provider) {
 		super(provider);
 		this.provider = provider;
+		this.registry = MockServiceRegistry.getInstance(provider);
 	}
 
 	@Override
 	public @Nonnull FirewallSupport getFirewallSupport() {
-		return new MockFirewallSupport(provider);
+		return registry.get(MockFirewallSupport.class, firewallSupport);
 	}
 
 	@Override
 	public @Nonnull IpAddressSupport getIpAddressSupport() {
-		return new MockIPSupport(provider);
+		return registry.get(MockIPSupport.class, ipSupport);
 	}
 
 	/*
@@ -130,7 +130,76 @@ public class MockFirewallSupport implements FirewallSupport {
 				flist.add(id);
 			}
 			synchronized (firewalls) {
-				vmMap.put(vmId, flist);
+				vmMap.put(vmId, Collections.unmodifiableList(flist));
+			}
+		}
+	}
+
+	/**
+	 * Places a batch of VMs behind the same firewalls. The firewalls are
+	 * validated once and the resulting immutable list is shared by every VM
+	 * rather than copied.
+	 *
+	 * @param provider
+	 *            the cloud provider whose firewalls are used
+	 * @param vmIds
+	 *            the VMs receiving the firewalls
+	 * @param firewallIds
+	 *            the firewalls
+	 * @throws CloudException
+	 *             the cloud has no firewall support or a firewall does not
+	 *             exist
+	 * @throws InternalException
+	 *             an error occurred looking up a firewall
+	 */
+	static public void saveFirewallsForVMs(@Nonnull CloudProvider provider, @Nonnull Collection<String> vmIds,
+			@Nonnull String... firewallIds) throws CloudException, InternalException {
+		NetworkServices network = provider.getNetworkServices();
+
+		if (network == null) {
+			throw new CloudException("No firewall services supported in this cloud");
+		}
+		FirewallSupport support = network.getFirewallSupport();
+
+		if (support == null) {
+			throw new CloudException("No firewall services supported in this cloud");
+		}
+		if (support instanceof MockFirewallSupport) {
+			ArrayList<String> flist = new ArrayList<String>();
+
+			for (String id : firewallIds) {
+				Firewall fw = support.getFirewall(id);
+
+				if (fw == null) {
+					throw new CloudException("No such firewall: " + id);
+				}
+				flist.add(id);
+			}
+			Collection<String> shared = Collections.unmodifiableList(flist);
+
+			synchronized (firewalls) {
+				for (String vmId : vmIds) {
+					vmMap.put(vmId, shared);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Places a VM behind the same firewalls as another VM. The firewall list
+	 * of the source VM is immutable and is shared rather than copied.
+	 *
+	 * @param sourceVmId
+	 *            the VM whose firewalls are copied
+	 * @param vmId
+	 *            the VM receiving the firewalls
+	 */
+	static public void shareFirewalls(@Nonnull String sourceVmId, @Nonnull String vmId) {
+		synchronized (firewalls) {
+			Collection<String> ids = vmMap.get(sourceVmId);
+
+			if (ids != null) {
+				vmMap.put(vmId, ids);
 			}
 		}
 	}
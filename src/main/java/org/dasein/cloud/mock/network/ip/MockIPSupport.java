@@ -26,6 +26,7 @@ import java.util.Locale;
 import java.util.Map;
 import java.util.Random;
 import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Future;
 
 import javax.annotation.Nonnull;
@@ -70,6 +71,7 @@ public class MockIPSupport implements IpAddressSupport {
 	static private final HashMap<String, Map<String, Map<String, Collection<String>>>> allocations =
 			new HashMap<String, Map<String, Map<String, Collection<String>>>>();
 	static private final HashMap<String, String> vmAssignments = new HashMap<String, String>();
+	static private final ConcurrentHashMap<String, String> vmAddresses = new ConcurrentHashMap<String, String>();
 	static private final HashMap<String, String> lbAssignments = new HashMap<String, String>();
 
 	static private int quad1 = 26;
@@ -168,37 +170,36 @@ public class MockIPSupport implements IpAddressSupport {
 				throw new CloudException("That IP address is not allocated to you");
 			}
 
-			String current = null;
-
-			for (Map.Entry<String, String> entry : vmAssignments.entrySet()) {
-				if (entry.getKey().equals(ipAddress)) {
-					throw new CloudException("IP address is already assigned");
-				}
-				if (entry.getValue().equals(vm.getProviderVirtualMachineId())) {
-					current = entry.getKey();
-				}
+			if (vmAssignments.containsKey(ipAddress)) {
+				throw new CloudException("IP address is already assigned");
 			}
+			String current = vmAddresses.get(vm.getProviderVirtualMachineId());
+
 			if (current == null) {
 				if (lbAssignments.containsKey(ipAddress)) {
 					throw new CloudException("IP address is already assigned");
 				}
 			}
 			vmAssignments.put(ipAddress, vm.getProviderVirtualMachineId());
+			vmAddresses.put(vm.getProviderVirtualMachineId(), ipAddress);
 			if (current != null) {
 				vmAssignments.remove(current);
 			}
 		}
 	}
 
-	static public @Nullable String getIPAddressForVM(@Nonnull String vmId) {
+	static public void vmTerminated(@Nonnull String vmId) {
 		synchronized (allocatedIps) {
-			for (Map.Entry<String, String> entry : vmAssignments.entrySet()) {
-				if (entry.getValue().equals(vmId)) {
-					return entry.getKey();
-				}
+			String ip = vmAddresses.remove(vmId);
+
+			if (ip != null) {
+				vmAssignments.remove(ip);
 			}
 		}
-		return null;
+	}
+
+	static public @Nullable String getIPAddressForVM(@Nonnull String vmId) {
+		return vmAddresses.get(vmId);
 	}
 
 	static public @Nullable String getIPAddressForLB(@Nonnull String lbId) {
@@ -482,7 +483,11 @@ public class MockIPSupport implements IpAddressSupport {
 			if (!account.contains(ip)) {
 				throw new CloudException("Not your IP address");
 			}
-			vmAssignments.remove(ip);
+			String vmId = vmAssignments.remove(ip);
+
+			if (vmId != null) {
+				vmAddresses.remove(vmId, ip);
+			}
 		}
 	}
 
@@ -0,0 +1,94 @@
+/**
+ * Copyright (C) 2009-2012 enStratus Networks Inc.
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+
+package org.dasein.cloud.mock.compute.vm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Checks that user data payloads are deduplicated by content and stored
+ * compressed, and that they inflate back to the original text.
+ */
+public class MockUserDataTest {
+
+	static private String script(String marker, int lines) {
+		StringBuilder text = new StringBuilder("#!/bin/sh\n# " + marker + "\n");
+
+		for (int i = 0; i < lines; i++) {
+			text.append("echo \"configuring step ").append(i).append("\" >> /var/log/bootstrap.log\n");
+		}
+		return text.toString();
+	}
+
+	@Test
+	public void noUserData() {
+		assertNull(MockUserData.getInstance(null));
+	}
+
+	@Test
+	public void identicalPayloadsAreStoredOnce() {
+		String text = script("dedup", 50);
+		MockUserData first = MockUserData.getInstance(text);
+		int stored = MockUserData.getStoredCount();
+		MockUserData second = MockUserData.getInstance(new String(text));
+
+		assertSame(first, second);
+		assertEquals(stored, MockUserData.getStoredCount());
+		assertEquals(first.getDigest(), second.getDigest());
+	}
+
+	@Test
+	public void distinctPayloadsAreStoredSeparately() {
+		MockUserData a = MockUserData.getInstance(script("a", 10));
+		MockUserData b = MockUserData.getInstance(script("b", 10));
+
+		assertNotSame(a, b);
+		assertTrue(!a.getDigest().equals(b.getDigest()));
+		assertTrue(MockUserData.getStoredCount() >= 2);
+	}
+
+	@Test
+	public void payloadsAreCompressed() {
+		String text = script("compressed", 500);
+		MockUserData data = MockUserData.getInstance(text);
+
+		assertTrue(data.getCompressedSize() < text.length() / 4);
+		data.dropText();
+
+		String inflated = data.getText();
+
+		assertNotSame(text, inflated);
+		assertEquals(text, inflated);
+	}
+
+	@Test
+	public void digestIsSha256() {
+		MockUserData data = MockUserData.getInstance("");
+
+		assertEquals("e3b0c44298fc1c149afbf4c8996fb92427ae41e4649b934ca495991b7852b855", data.getDigest());
+		data.dropText();
+		assertEquals("", data.getText());
+	}
+}
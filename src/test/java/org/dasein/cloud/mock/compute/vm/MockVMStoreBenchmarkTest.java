@@ -0,0 +1,131 @@
+/**
+ * Copyright (C) 2009-2012 enStratus Networks Inc.
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+
+package org.dasein.cloud.mock.compute.vm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.annotation.Nonnull;
+
+import org.dasein.cloud.compute.VmState;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Compares the throughput of inserting VMs into a {@link MockVMStore} one at a
+ * time against inserting them as a batch, and checks that both leave the
+ * store in the same state. The throughput comparison only runs when the
+ * <code>dasein.mock.benchmark</code> system property is <code>true</code>;
+ * its batch size can be overridden through the
+ * <code>dasein.mock.benchmark.vms</code> system property. The shards used
+ * here are discarded after each test.
+ */
+public class MockVMStoreBenchmarkTest {
+
+	static private final Logger logger = LoggerFactory.getLogger(MockVMStoreBenchmarkTest.class);
+
+	static private final int COUNT = Integer.getInteger("dasein.mock.benchmark.vms", 100000);
+	static private final int ROUNDS = 3;
+	static private final String ENDPOINT = "benchmark";
+
+
+	static private @Nonnull List<MockVM> create(String prefix, int count) {
+		ArrayList<MockVM> vms = new ArrayList<MockVM>(count);
+
+		for (int i = 0; i < count; i++) {
+			MockVM vm = new MockVM();
+
+			vm.vmId = prefix + "-" + i;
+			vm.owner = "owner-" + (i % 4);
+			vm.dataCenterId = "dc-1";
+			vm.currentState = VmState.PENDING;
+			vm.tags = Collections.singletonMap("batch", prefix);
+			vms.add(vm);
+		}
+		return vms;
+	}
+
+	static private long rate(int count, long nanos) {
+		return (count * 1000000000L) / Math.max(1L, nanos);
+	}
+
+	@After
+	public void discardShards() {
+		MockVMStore.discard(ENDPOINT);
+	}
+
+	@Test
+	public void batchInsertMatchesSingleInserts() {
+		MockVMStore single = MockVMStore.getInstance(ENDPOINT, "single");
+		MockVMStore batch = MockVMStore.getInstance(ENDPOINT, "batch");
+		List<MockVM> one = create("single", 1000);
+		List<MockVM> many = create("batch", 1000);
+
+		for (MockVM vm : one) {
+			single.add(vm);
+		}
+		batch.addAll(many);
+		assertEquals(single.size(), batch.size());
+		for (MockVM vm : many) {
+			assertSame(vm, batch.get(vm.vmId));
+			assertSame(batch, vm.store);
+		}
+		MockVMQuery query =
+				MockVMQuery.getInstance().ownedBy("owner-1").inStates(Collections.singleton(VmState.PENDING));
+
+		assertEquals(single.select(query).size(), batch.select(query).size());
+		assertEquals(250, batch.select(query).size());
+		assertEquals(1000, batch.page(-1L, Integer.MAX_VALUE).size());
+	}
+
+	@Test
+	public void insertThroughput() {
+		Assume.assumeTrue(Boolean.getBoolean("dasein.mock.benchmark"));
+		for (int round = 0; round < ROUNDS; round++) {
+			MockVMStore single = MockVMStore.getInstance(ENDPOINT, "single-" + round);
+			MockVMStore batch = MockVMStore.getInstance(ENDPOINT, "batch-" + round);
+			List<MockVM> one = create("single-" + round, COUNT);
+			List<MockVM> many = create("batch-" + round, COUNT);
+			long start = System.nanoTime();
+
+			for (MockVM vm : one) {
+				single.add(vm);
+			}
+			long singleNanos = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			batch.addAll(many);
+
+			long batchNanos = System.nanoTime() - start;
+
+			assertEquals(COUNT, single.size());
+			assertEquals(COUNT, batch.size());
+			logger.info("Round " + round + ": add() " + rate(COUNT, singleNanos) + " VMs/s, addAll() "
+					+ rate(COUNT, batchNanos) + " VMs/s");
+		}
+	}
+}
@@ -0,0 +1,93 @@
+/**
+ * Copyright (C) 2009-2012 enStratus Networks Inc.
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+
+package org.dasein.cloud.mock.compute.vm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.EnumSet;
+
+import org.dasein.cloud.compute.VmState;
+import org.dasein.cloud.mock.compute.vm.MockVMTransitions.Operation;
+import org.junit.Test;
+
+/**
+ * Exercises the transition table on its own, state by state.
+ */
+public class MockVMTransitionsTest {
+
+	static private void assertOnlyFrom(Operation operation, VmState target, VmState... allowed) {
+		EnumSet<VmState> from = EnumSet.noneOf(VmState.class);
+
+		for (VmState state : allowed) {
+			from.add(state);
+		}
+		for (VmState state : VmState.values()) {
+			if (from.contains(state)) {
+				assertEquals(operation + " from " + state, target, MockVMTransitions.target(operation, state));
+			} else {
+				assertNull(operation + " from " + state, MockVMTransitions.target(operation, state));
+			}
+		}
+	}
+
+	@Test
+	public void unpauseMovesPausedToPending() {
+		assertOnlyFrom(Operation.UNPAUSE, VmState.PENDING, VmState.PAUSED);
+	}
+
+	@Test
+	public void terminateIsAllowedFromEveryLiveState() {
+		EnumSet<VmState> live = EnumSet.complementOf(EnumSet.of(VmState.TERMINATED));
+
+		assertOnlyFrom(Operation.TERMINATE, VmState.TERMINATED, live.toArray(new VmState[live.size()]));
+	}
+
+	@Test
+	public void operationsOnRunningVMs() {
+		assertOnlyFrom(Operation.PAUSE, VmState.PAUSING, VmState.RUNNING);
+		assertOnlyFrom(Operation.REBOOT, VmState.REBOOTING, VmState.RUNNING);
+		assertOnlyFrom(Operation.STOP, VmState.STOPPING, VmState.RUNNING);
+		assertOnlyFrom(Operation.SUSPEND, VmState.SUSPENDING, VmState.RUNNING);
+	}
+
+	@Test
+	public void operationsOnIdleVMs() {
+		assertOnlyFrom(Operation.START, VmState.PENDING, VmState.STOPPED);
+		assertOnlyFrom(Operation.RESUME, VmState.PENDING, VmState.SUSPENDED);
+	}
+
+	@Test
+	public void transitionalStatesSettle() {
+		assertEquals(VmState.RUNNING, MockVMTransitions.settle(VmState.PENDING));
+		assertEquals(VmState.PAUSED, MockVMTransitions.settle(VmState.PAUSING));
+		assertEquals(VmState.SUSPENDED, MockVMTransitions.settle(VmState.SUSPENDING));
+		assertEquals(VmState.STOPPED, MockVMTransitions.settle(VmState.STOPPING));
+		assertEquals(VmState.PENDING, MockVMTransitions.settle(VmState.REBOOTING));
+	}
+
+	@Test
+	public void stableStatesDoNotSettle() {
+		for (VmState state : EnumSet.of(VmState.RUNNING, VmState.PAUSED, VmState.SUSPENDED, VmState.STOPPED,
+				VmState.TERMINATED)) {
+			assertNull(state.name(), MockVMTransitions.settle(state));
+		}
+	}
+}